@@ -0,0 +1,95 @@
+package im.tretyakov.test.eventcounter;
+
+import java.util.Collection;
+import java.util.stream.IntStream;
+
+/**
+ * Массовые запросы к большому количеству счётчиков событий.
+ * <p>
+ * Счётчики обрабатываются параллельно в общем {@link java.util.concurrent.ForkJoinPool} через параллельный поток индексов. Для
+ * {@link EventCounterCyclicBufferImpl} все окна одного счётчика считаются за один захват буфера прямо по его содержимому, без копирования;
+ * для остальных реализаций вызываются методы интерфейса.
+ * <p>
+ * Результаты складываются в один {@code long[]}: число событий счётчика {@code i} за окно {@code j} лежит в элементе
+ * {@code i * windows.length + j}.
+ *
+ * @author Kuldikin
+ */
+public final class EventCounterBulkQuery {
+
+    /**
+     * Окно запроса
+     */
+    public enum Window {
+        /**
+         * Последняя минута (60 секунд)
+         */
+        MINUTE(60),
+        /**
+         * Последний час (60 минут)
+         */
+        HOUR(60 * 60),
+        /**
+         * Последние сутки (24 часа)
+         */
+        DAY(24 * 60 * 60);
+
+        private final int seconds;
+
+        Window(final int seconds) {
+            this.seconds = seconds;
+        }
+
+        public int getSeconds() {
+            return seconds;
+        }
+    }
+
+    private EventCounterBulkQuery() {
+    }
+
+    /**
+     * Выдаёт число событий для каждого счётчика за каждое окно
+     *
+     * @param counters счётчики, порядок результатов совпадает с порядком обхода коллекции
+     * @param windows  окна запроса
+     * @return массив длиной {@code counters.size() * windows.length}, число событий счётчика {@code i} за окно {@code j} лежит в элементе
+     * {@code i * windows.length + j}
+     */
+    public static long[] query(final Collection<? extends EventCounter> counters, final Window... windows) {
+        final EventCounter[] snapshot = counters.toArray(new EventCounter[counters.size()]);
+        final int[] seconds = new int[windows.length];
+        for (int i = 0; i < windows.length; i++) {
+            seconds[i] = windows[i].getSeconds();
+        }
+        final long[] result = new long[snapshot.length * windows.length];
+        if (windows.length == 0) {
+            return result;
+        }
+        //каждый счётчик пишет в свой непересекающийся кусок результата, поэтому синхронизация не нужна
+        IntStream.range(0, snapshot.length).parallel().forEach(
+                i -> query(snapshot[i], windows, seconds, result, i * windows.length)
+        );
+        return result;
+    }
+
+    private static void query(final EventCounter counter, final Window[] windows, final int[] seconds, final long[] result,
+            final int offset) {
+        if (counter instanceof EventCounterCyclicBufferImpl) {
+            ((EventCounterCyclicBufferImpl) counter).eventsByLastSeconds(seconds, result, offset);
+            return;
+        }
+        for (int i = 0; i < windows.length; i++) {
+            switch (windows[i]) {
+                case MINUTE:
+                    result[offset + i] = counter.eventsByLastMinute();
+                    break;
+                case HOUR:
+                    result[offset + i] = counter.eventsByLastHour();
+                    break;
+                default:
+                    result[offset + i] = counter.eventsByLastDay();
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package im.tretyakov.test.eventcounter;
 
 import com.kuldikin.test.eventcounter.Clock;
+import java.util.Arrays;
 
 /**
  * Реализация интерфейса для учета однотипных событий в системе с использованием кольцевых буферов.
@@ -8,12 +9,13 @@ import com.kuldikin.test.eventcounter.Clock;
  * Данная реализация обеспечивает регистрацию более 8.000.000 событий в секунду при одном поставщике.
  * <p>
  * Реализация основана накольцевом буфере размера 86400 элементов (количество секунд в сутках). 
- * Буфер содержит пару значений: номер секунды в сутках(индекс времени) и колличество событий.
+ * Элемент буфера содержит колличество событий за секунду, номер секунды в сутках(индекс времени) совпадает с индексом элемента.
  * Первая секунда суток лежит в 0 элементе буфера, последняя в последнем.
  * <p>
- * При добавлении события мы заботимся об удалении событий старше 24 часов из буфера.
- * Также после добавления события мы сохраняем номер суток и индекс времени последнего изменения, это 
- * позволяет более оптимально производить чистку старых событий при добавлении следующего элемента.
+ * После добавления события мы сохраняем номер секунды от 1970 последнего изменения: все элементы буфера относятся к последним суткам
+ * до этой секунды. При добавлении следующего события чистятся только элементы секунд, пропущенных с прошлого изменения, а запросы
+ * не заглядывают в элементы старше суток до последнего изменения и в элементы после него, поэтому после паузы любой длины в
+ * сумму не попадают устаревшие значения.
  * <p>
  * Эта реализация более устойчива к большому количеству нагрузок за счёт оптимизированой чистки.
  * 
@@ -25,81 +27,79 @@ public class EventCounterCyclicBufferImpl implements EventCounter {
 
     private static final long MILLIS_IN_SECOND = 1000L;
 
-    private static final int SECONDS_IN_DAY = 24 * 60 * 60;
+    private static final int SECONDS_IN_MINUTE = 60;
 
-    private static final long MILLIS_IN_DAY = SECONDS_IN_DAY * 1000L;
+    private static final int SECONDS_IN_HOUR = SECONDS_IN_MINUTE * 60;
+
+    private static final int SECONDS_IN_DAY = 24 * SECONDS_IN_HOUR;
 
     private final long[] events = new long[SECONDS_IN_DAY];
 
-    private volatile int eventsPointer = 0;
+    private long lastSecond;//номер секунды от 1970 последнего изменения буфера
 
-    private volatile long lastDayHours;
+    private final long createdSecond;//номер секунды от 1970 создания счётчика
 
     private final Clock clock;
 
     public EventCounterCyclicBufferImpl(Clock clock) {
         this.clock = clock;
-        this.lastDayHours = clock.getTime() / MILLIS_IN_DAY;
+        this.createdSecond = clock.getTime() / MILLIS_IN_SECOND;
+        this.lastSecond = this.createdSecond;
     }
 
     public EventCounterCyclicBufferImpl() {
         this(Clock.defaultClock());
     }
 
+    /**
+     * Выдаёт часы, по которым счётчик раскладывает события
+     *
+     * @return часы счётчика
+     */
+    Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Выдаёт минуту создания счётчика: раньше неё событий быть не может
+     *
+     * @return номер минуты от 1970
+     */
+    long getCreatedMinute() {
+        return Math.floorDiv(createdSecond, (long) SECONDS_IN_MINUTE);
+    }
+
     /**
      * Учитывает событие
      */
     @Override
     public synchronized void countEvent() {
-        final long millis = clock.getTime();
-        final long currentDayHours = millis / MILLIS_IN_DAY;//кол-во дней прош. от 1970
-        final int currentIndex = (int) (millis / MILLIS_IN_SECOND) % SECONDS_IN_DAY;//секунда в дне 0-86399 (Индекс времени)
-        if (currentDayHours == this.lastDayHours) {
-            //если пред. событие было в этот день
-            if (currentIndex == this.eventsPointer) {
-                //если пред. событие было в эту же сек.
-                this.events[currentIndex]++;
+        final long second = clock.getTime() / MILLIS_IN_SECOND;
+        final int currentIndex = (int) Math.floorMod(second, (long) SECONDS_IN_DAY);//секунда в дне 0-86399 (Индекс времени)
+        if (second == this.lastSecond) {
+            //если пред. событие было в эту же сек.
+            this.events[currentIndex]++;
+        } else if (second > this.lastSecond) {
+            //чистим секунды, пропущенные с пред. события, но не больше чем весь буфер
+            final long skipped = Math.min(second - this.lastSecond - 1, SECONDS_IN_DAY);
+            final int from = (int) Math.floorMod(this.lastSecond + 1, (long) SECONDS_IN_DAY);
+            if (from + skipped <= SECONDS_IN_DAY) {
+                Arrays.fill(this.events, from, (int) (from + skipped), 0L);
             } else {
-                if (currentIndex < this.eventsPointer) {
-                    //если 
-                    System.arraycopy(
-                            new long[this.eventsPointer - currentIndex],
-                            0,
-                            this.events,
-                            currentIndex,
-                            this.eventsPointer - currentIndex
-                    );//чистим часть от currentIndex до eventsPointer
-                }
-                this.events[currentIndex] = 1L;
-                this.eventsPointer = currentIndex;
-            }
-        } else if (currentDayHours == this.lastDayHours + 1) {
-            //если пред. событие было вчера
-            if (currentIndex == this.eventsPointer) {
-                //вчера с такимже индексом времени (в ту же сек.)
-                System.arraycopy(new long[SECONDS_IN_DAY], 0, this.events, 0, SECONDS_IN_DAY);//чистим всю кучу
-            } else if (currentIndex < this.eventsPointer) {
-                //вчера но не более чем 24 часа
-                System.arraycopy(
-                        new long[this.eventsPointer - currentIndex],
-                        0,
-                        this.events,
-                        currentIndex,
-                        this.eventsPointer - currentIndex
-                );//чистим часть от currentIndex до eventsPointer//чистим часть от currentIndex до eventsPointer
-            } else {
-                System.arraycopy(new long[SECONDS_IN_DAY - currentIndex], 0, this.events, currentIndex, SECONDS_IN_DAY - currentIndex);
-                //чистим всё после currentIndex
+                Arrays.fill(this.events, from, SECONDS_IN_DAY, 0L);
+                Arrays.fill(this.events, 0, (int) (from + skipped - SECONDS_IN_DAY), 0L);
             }
             this.events[currentIndex] = 1L;
-            this.eventsPointer = currentIndex;
+            this.lastSecond = second;
+        } else if (second > this.lastSecond - SECONDS_IN_DAY) {
+            //часы немного отстали, но секунда ещё в буфере
+            this.events[currentIndex]++;
         } else {
-            //если пред. событие было больше чм 24 часа назад
-            System.arraycopy(new long[SECONDS_IN_DAY], 0, this.events, 0, SECONDS_IN_DAY);
+            //часы отстали больше чем на сутки, начинаем заново
+            Arrays.fill(this.events, 0L);
             this.events[currentIndex] = 1L;
-            this.eventsPointer = currentIndex;
+            this.lastSecond = second;
         }
-        this.lastDayHours = currentDayHours;
     }
 
     /**
@@ -109,31 +109,7 @@ public class EventCounterCyclicBufferImpl implements EventCounter {
      */
     @Override
     public long eventsByLastMinute() {
-        final long millis = clock.getTime();
-        final long[] seconds = new long[60];
-        final long dayHours = millis / MILLIS_IN_DAY;//кол-во дней прош. от 1970
-        final int currentPointer = (int) ((millis / MILLIS_IN_SECOND) % SECONDS_IN_DAY);//секунда в дне 0-86399 (Индекс времени)
-        synchronized (this.events) {
-            if (dayHours <= this.lastDayHours + 1) {
-                //если последнее событие было вчера(после 23:59) или сегодня
-                if (currentPointer > 58) {
-                    //если индекс времени сейчас меньше минуты то копируем последнии 60 секунд
-                    System.arraycopy(this.events, currentPointer - 59, seconds, 0, 60);
-                } else {
-                    //а если иначе, то придется захватить кусок с конца и кусок с начала буфера
-                    System.arraycopy(this.events, (SECONDS_IN_DAY - 1) - (58 - currentPointer), seconds, 0, 59 - currentPointer);
-                    System.arraycopy(this.events, 0, seconds, 59 - currentPointer, currentPointer + 1);
-                }
-            } else {
-                return 0L;
-            }
-        }
-        //считаем сумму уже по копии массива, что бы не блокировать на долго
-        long sum = 0L;
-        for (long events : seconds) {
-            sum += events;
-        }
-        return sum;
+        return eventsByLastSeconds(SECONDS_IN_MINUTE);
     }
 
     /**
@@ -143,31 +119,7 @@ public class EventCounterCyclicBufferImpl implements EventCounter {
      */
     @Override
     public long eventsByLastHour() {
-        final long millis = clock.getTime();
-        final long[] minutes = new long[3600];
-        final long dayHours = millis / MILLIS_IN_DAY;//кол-во дней прош. от 1970
-        final int currentPointer = (int) ((millis / MILLIS_IN_SECOND) % SECONDS_IN_DAY);//секунда в дне 0-86399 (Индекс времени)
-        synchronized (this.events) {
-            if (dayHours <= this.lastDayHours + 1) {
-                //если последнее событие было вчера(после 23:00) или сегодня
-                if (currentPointer > 3598) {
-                    //если индекс времени сейчас меньше часа то копируем следующий час
-                    System.arraycopy(this.events, currentPointer - 3599, minutes, 0, 3600);
-                } else {
-                    //а если иначе, то придется захватить кусок с конца и кусок с начала буфера
-                    System.arraycopy(this.events, (SECONDS_IN_DAY - 1) - (3598 - currentPointer), minutes, 0, 3599 - currentPointer);
-                    System.arraycopy(this.events, 0, minutes, 3599 - currentPointer, currentPointer + 1);
-                }
-            } else {
-                return 0L;
-            }
-        }
-        //считаем сумму уже по копии массива, что бы не блокировать на долго
-        long sum = 0L;
-        for (long events : minutes) {
-            sum += events;
-        }
-        return sum;
+        return eventsByLastSeconds(SECONDS_IN_HOUR);
     }
 
     /**
@@ -177,21 +129,95 @@ public class EventCounterCyclicBufferImpl implements EventCounter {
      */
     @Override
     public long eventsByLastDay() {
-        final long millis = clock.getTime();
-        final long[] hours = new long[SECONDS_IN_DAY];
-        final long dayHours = millis / MILLIS_IN_DAY;//кол-во дней прош. от 1970
-        synchronized (this.events) {
-            if (dayHours <= this.lastDayHours + 1) {
-                //если последний день в котором было событие = вчера или сегодня
-                System.arraycopy(this.events, 0, hours, 0, SECONDS_IN_DAY);
-            } else {
-                return 0L;
+        return eventsByLastSeconds(SECONDS_IN_DAY);
+    }
+
+    /**
+     * Выдаёт число событий за последние {@code seconds} секунд
+     *
+     * @param seconds размер окна в секундах, от 1 до 86400
+     * @return число событий за окно
+     */
+    long eventsByLastSeconds(final int seconds) {
+        final long[] result = new long[1];
+        eventsByLastSeconds(new int[]{seconds}, result, 0);
+        return result[0];
+    }
+
+    /**
+     * Считает число событий сразу для нескольких окон за один захват буфера.
+     * <p>
+     * Суммы считаются прямо по буферу, без копирования: проход по диапазону стоит столько же, сколько его копия, зато не выделяется
+     * массив на каждый запрос.
+     *
+     * @param windows размеры окон в секундах, от 1 до 86400
+     * @param result  куда положить суммы
+     * @param offset  индекс в {@code result} для первого окна
+     */
+    void eventsByLastSeconds(final int[] windows, final long[] result, final int offset) {
+        final long now = clock.getTime() / MILLIS_IN_SECOND;
+        for (int window : windows) {
+            if (window < 1 || window > SECONDS_IN_DAY) {
+                throw new IllegalArgumentException("Window must be between 1 and " + SECONDS_IN_DAY + " seconds: " + window);
+            }
+        }
+        synchronized (this) {//тот же монитор, что и у countEvent, иначе чтение не видит записи
+            for (int i = 0; i < windows.length; i++) {
+                //окно [now - window + 1, now], но только секунды, которые лежат в буфере
+                result[offset + i] = sumSeconds(Math.max(now - windows[i] + 1, this.lastSecond - SECONDS_IN_DAY + 1),
+                        Math.min(now, this.lastSecond));
             }
         }
-        //считаем сумму уже по копии массива, что бы не блокировать на долго 
+    }
+
+    /**
+     * Раскладывает по минутам события, учтённые за минуты {@code [fromMinute, fromMinute + result.length)} (номера минут от 1970).
+     * <p>
+     * Минуты, часть секунд которых уже вытеснена из буфера, в {@code result} обнуляются; они всегда идут в начале диапазона.
+     *
+     * @param fromMinute номер первой минуты от 1970
+     * @param result     куда положить суммы по минутам
+     * @return сколько первых минут диапазона уже вытеснено из буфера
+     */
+    int eventsByMinutes(final long fromMinute, final long[] result) {
+        synchronized (this) {
+            //первая минута, все секунды которой ещё лежат в буфере
+            final long firstMinute = Math.floorDiv(this.lastSecond - SECONDS_IN_DAY + SECONDS_IN_MINUTE, (long) SECONDS_IN_MINUTE);
+            final int lost = (int) Math.max(0L, Math.min(firstMinute - fromMinute, result.length));
+            Arrays.fill(result, 0, lost, 0L);
+            for (int i = lost; i < result.length; i++) {
+                final long second = (fromMinute + i) * SECONDS_IN_MINUTE;
+                result[i] = sumSeconds(second, Math.min(second + SECONDS_IN_MINUTE - 1, this.lastSecond));
+            }
+            return lost;
+        }
+    }
+
+    /**
+     * Сумма событий за секунды [from, to] (номера секунд от 1970), диапазон не длиннее суток. Вызывается под монитором.
+     */
+    private long sumSeconds(final long from, final long to) {
+        if (from > to) {
+            return 0L;
+        }
+        final int fromIndex = (int) Math.floorMod(from, (long) SECONDS_IN_DAY);
+        final int toIndex = (int) Math.floorMod(to, (long) SECONDS_IN_DAY);
+        if (fromIndex <= toIndex && to - from < SECONDS_IN_DAY) {
+            return sum(this.events, fromIndex, toIndex + 1);
+        }
+        //а если иначе, то придется захватить кусок с конца и кусок с начала буфера
+        return sum(this.events, fromIndex, SECONDS_IN_DAY) + sum(this.events, 0, toIndex + 1);
+    }
+
+    /**
+     * Сумма элементов массива в диапазоне [from, to).
+     * <p>
+     * Цикл намеренно простой: без ветвлений и с одним аккумулятором JIT его векторизует.
+     */
+    static long sum(final long[] values, final int from, final int to) {
         long sum = 0L;
-        for (long events : hours) {
-            sum += events;
+        for (int i = from; i < to; i++) {
+            sum += values[i];
         }
         return sum;
     }
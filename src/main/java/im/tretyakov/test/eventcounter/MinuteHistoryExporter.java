@@ -0,0 +1,159 @@
+package im.tretyakov.test.eventcounter;
+
+import com.kuldikin.test.eventcounter.Clock;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Фоновая выгрузка поминутной истории событий из {@link EventCounterCyclicBufferImpl} в файл {@link MinuteHistoryWriter}.
+ * <p>
+ * Раз в заданный период фоновый поток забирает из буфера счётчика суммы по всем завершившимся с прошлой выгрузки минутам и дописывает
+ * их в открытый блок. Блок закрывается и отправляется в файл, когда он заполнен, когда его первая минута старше заданного числа минут
+ * или при закрытии, поэтому частая выгрузка не дробит файл на мелкие блоки.
+ * <p>
+ * Буфер хранит сутки, так что минута теряется, только если выгрузка не успевала больше суток; такие минуты учитываются в
+ * {@link #getLostMinutes()}. Учёт событий выгрузка почти не замедляет: монитор счётчика захватывается порциями не больше чем на
+ * {@value #BATCH_MINUTES} минут (3600 элементов буфера), даже когда выгрузка догоняет целые сутки, а запись в файл идёт уже без него.
+ * <p>
+ * Выгрузка начинается с минуты создания счётчика, а после перезапуска - с минуты, следующей за последней записанной в файл, если
+ * она позже.
+ *
+ * @author Kuldikin
+ */
+public class MinuteHistoryExporter implements Closeable {
+
+    private static final long MILLIS_IN_MINUTE = 60_000L;
+
+    //сколько минут суммируется за один захват монитора счётчика
+    private static final int BATCH_MINUTES = 60;
+
+    public static final int DEFAULT_FLUSH_MINUTES = 60;
+
+    private final EventCounterCyclicBufferImpl counter;
+
+    private final Clock clock;
+
+    private final MinuteHistoryWriter writer;
+
+    private final int flushMinutes;
+
+    private final ScheduledExecutorService scheduler;
+
+    private long nextMinute;
+
+    private long lostMinutes;
+
+    private volatile Exception failure;
+
+    /**
+     * @param counter      счётчик, из буфера которого выгружаются минуты; границы минут берутся по его же часам
+     * @param path         путь к файлу истории
+     * @param periodMillis период фоновой выгрузки в мс
+     * @param flushMinutes через сколько минут после первой минуты открытого блока он отправляется в файл, даже если не заполнен
+     * @throws IOException если файл не удалось открыть
+     */
+    public MinuteHistoryExporter(final EventCounterCyclicBufferImpl counter, final Path path, final long periodMillis,
+            final int flushMinutes) throws IOException {
+        if (periodMillis <= 0L) {
+            throw new IllegalArgumentException("Export period must be positive: " + periodMillis);
+        }
+        if (flushMinutes <= 0) {
+            throw new IllegalArgumentException("Flush age must be positive: " + flushMinutes);
+        }
+        this.counter = counter;
+        this.clock = counter.getClock();
+        this.flushMinutes = flushMinutes;
+        this.writer = new MinuteHistoryWriter(path);
+        //продолжаем за последней записанной минутой, но не раньше создания счётчика: до него терять нечего
+        this.nextMinute = Math.max(this.writer.getLastMinute() + 1, counter.getCreatedMinute());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            final Thread thread = new Thread(task, "minute-history-exporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                export();
+            } catch (IOException e) {
+                failure = e;
+                //исключение отменяет следующие запуски, ошибка выбросится из close()
+                throw new UncheckedIOException(e);
+            } catch (RuntimeException e) {
+                failure = e;
+                throw e;
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public MinuteHistoryExporter(final EventCounterCyclicBufferImpl counter, final Path path, final long periodMillis)
+            throws IOException {
+        this(counter, path, periodMillis, DEFAULT_FLUSH_MINUTES);
+    }
+
+    /**
+     * Выгружает все завершившиеся минуты, не дожидаясь очередного запуска. Открытый блок отправляется в файл, только если он
+     * достаточно стар.
+     *
+     * @throws IOException при ошибке записи
+     */
+    public synchronized void export() throws IOException {
+        final long currentMinute = Math.floorDiv(clock.getTime(), MILLIS_IN_MINUTE);
+        while (nextMinute < currentMinute) {
+            final long[] counts = new long[(int) Math.min(currentMinute - nextMinute, BATCH_MINUTES)];
+            final int lost = counter.eventsByMinutes(nextMinute, counts);
+            lostMinutes += lost;
+            nextMinute += lost;
+            for (int i = lost; i < counts.length; i++) {
+                //после каждой минуты, чтобы повтор после ошибки не дописал уже записанные
+                writer.append(nextMinute, counts[i]);
+                nextMinute++;
+            }
+        }
+        if (currentMinute - writer.getFirstUnflushedMinute() >= flushMinutes) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Выдаёт число минут, вытесненных из буфера счётчика раньше, чем их успели выгрузить
+     *
+     * @return число потерянных минут
+     */
+    public synchronized long getLostMinutes() {
+        return lostMinutes;
+    }
+
+    /**
+     * Останавливает фоновую выгрузку, выгружает оставшиеся завершившиеся минуты и закрывает файл
+     *
+     * @throws IOException если фоновая или последняя выгрузка завершилась ошибкой
+     */
+    @Override
+    public void close() throws IOException {
+        //без прерывания: прерванная запись закрыла бы FileChannel
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1L, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                if (failure instanceof IOException) {
+                    throw (IOException) failure;
+                }
+                if (failure != null) {
+                    throw new IOException("Background export failed", failure);
+                }
+                export();
+            } finally {
+                writer.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package im.tretyakov.test.eventcounter;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Формат файла поминутной истории событий.
+ * <p>
+ * Файл данных состоит из блоков, записанных друг за другом. Блок хранит только минуты с ненулевым числом событий, по колонкам:
+ * <ol>
+ * <li>varint - количество минут в блоке;</li>
+ * <li>varint - номер первой минуты от 1970, затем varint-разности номеров соседних минут;</li>
+ * <li>varint - число событий за каждую минуту.</li>
+ * </ol>
+ * Рядом лежит файл индекса {@code <данные>.idx} с записями фиксированного размера {@link #INDEX_ENTRY_SIZE} на каждый блок: первая и
+ * последняя минута блока, смещение и длина блока в файле данных. Индекс дописывается только после того, как данные блока сброшены на
+ * диск ({@link java.nio.channels.FileChannel#force(boolean)}), поэтому и после сбоя ОС при открытии записи индекса, указывающие за
+ * конец файла данных, отбрасываются как недописанные.
+ *
+ * @author Kuldikin
+ */
+final class MinuteHistoryFormat {
+
+    static final String INDEX_SUFFIX = ".idx";
+
+    static final int INDEX_ENTRY_SIZE = 8 + 8 + 8 + 4;
+
+    /**
+     * Максимальная длина varint для long
+     */
+    static final int MAX_VARLONG_SIZE = 10;
+
+    private MinuteHistoryFormat() {
+    }
+
+    /**
+     * Индекс блоков
+     */
+    static final class Index {
+
+        final long[] firstMinutes;
+
+        final long[] lastMinutes;
+
+        final long[] offsets;
+
+        final int[] lengths;
+
+        final int size;
+
+        private Index(final int size) {
+            this.firstMinutes = new long[size];
+            this.lastMinutes = new long[size];
+            this.offsets = new long[size];
+            this.lengths = new int[size];
+            this.size = size;
+        }
+
+        /**
+         * Конец последнего блока в файле данных
+         */
+        long dataEnd() {
+            return size == 0 ? 0L : offsets[size - 1] + lengths[size - 1];
+        }
+
+        /**
+         * Номер первого блока, последняя минута которого не меньше {@code minute}
+         */
+        int firstBlockEndingAtOrAfter(final long minute) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                final int middle = (low + high) >>> 1;
+                if (lastMinutes[middle] < minute) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Читает индекс, отбрасывая недописанный хвост: неполную запись и записи блоков, не поместившихся в файл данных
+     */
+    static Index readIndex(final FileChannel index, final long dataSize) throws IOException {
+        final int entries = (int) (index.size() / INDEX_ENTRY_SIZE);
+        final ByteBuffer buffer = ByteBuffer.allocate(entries * INDEX_ENTRY_SIZE);
+        readFully(index, buffer, 0L);
+        ((Buffer) buffer).flip();
+        final Index all = new Index(entries);
+        int valid = 0;
+        for (int i = 0; i < entries; i++) {
+            all.firstMinutes[i] = buffer.getLong();
+            all.lastMinutes[i] = buffer.getLong();
+            all.offsets[i] = buffer.getLong();
+            all.lengths[i] = buffer.getInt();
+            if (all.offsets[i] + all.lengths[i] > dataSize) {
+                break;
+            }
+            valid++;
+        }
+        if (valid == entries) {
+            return all;
+        }
+        final Index result = new Index(valid);
+        System.arraycopy(all.firstMinutes, 0, result.firstMinutes, 0, valid);
+        System.arraycopy(all.lastMinutes, 0, result.lastMinutes, 0, valid);
+        System.arraycopy(all.offsets, 0, result.offsets, 0, valid);
+        System.arraycopy(all.lengths, 0, result.lengths, 0, valid);
+        return result;
+    }
+
+    static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, offset);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at " + offset);
+            }
+            offset += read;
+        }
+    }
+
+    static void putVarLong(final ByteBuffer buffer, final long value) {
+        long rest = value;
+        while ((rest & ~0x7FL) != 0L) {
+            buffer.put((byte) ((rest & 0x7FL) | 0x80L));
+            rest >>>= 7;
+        }
+        buffer.put((byte) rest);
+    }
+
+    static long getVarLong(final ByteBuffer buffer) {
+        long value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+}
@@ -0,0 +1,136 @@
+package im.tretyakov.test.eventcounter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Читает поминутную историю событий, записанную {@link MinuteHistoryWriter}.
+ * <p>
+ * Индекс блоков загружается целиком при открытии, а при обходе диапазона двоичным поиском по индексу находится первый нужный блок и
+ * читаются и декодируются только блоки, пересекающиеся с диапазоном. Видны только блоки, записанные к моменту открытия.
+ *
+ * @author Kuldikin
+ */
+public final class MinuteHistoryReader implements Closeable {
+
+    /**
+     * Получатель минут при обходе диапазона
+     */
+    public interface Visitor {
+
+        /**
+         * Вызывается для каждой минуты с событиями в порядке возрастания
+         *
+         * @param minute номер минуты от 1970
+         * @param count  число событий за минуту
+         */
+        void visit(long minute, long count);
+    }
+
+    private final FileChannel data;
+
+    private final MinuteHistoryFormat.Index index;
+
+    private MinuteHistoryReader(final FileChannel data, final MinuteHistoryFormat.Index index) {
+        this.data = data;
+        this.index = index;
+    }
+
+    /**
+     * Открывает историю для чтения
+     *
+     * @param path путь к файлу данных, индекс ищется рядом
+     * @return открытая история
+     * @throws IOException при ошибке чтения
+     */
+    public static MinuteHistoryReader open(final Path path) throws IOException {
+        final FileChannel data = FileChannel.open(path, StandardOpenOption.READ);
+        try (FileChannel index = FileChannel.open(MinuteHistoryWriter.indexPath(path), StandardOpenOption.READ)) {
+            return new MinuteHistoryReader(data, MinuteHistoryFormat.readIndex(index, data.size()));
+        } catch (IOException | RuntimeException e) {
+            data.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Выдаёт количество блоков в истории
+     *
+     * @return количество блоков
+     */
+    public int getBlocks() {
+        return index.size;
+    }
+
+    /**
+     * Выдаёт первую минуту с событиями
+     *
+     * @return номер минуты от 1970 или {@link Long#MAX_VALUE}, если история пуста
+     */
+    public long getFirstMinute() {
+        return index.size == 0 ? Long.MAX_VALUE : index.firstMinutes[0];
+    }
+
+    /**
+     * Выдаёт последнюю минуту с событиями
+     *
+     * @return номер минуты от 1970 или {@link Long#MIN_VALUE}, если история пуста
+     */
+    public long getLastMinute() {
+        return index.size == 0 ? Long.MIN_VALUE : index.lastMinutes[index.size - 1];
+    }
+
+    /**
+     * Обходит минуты с событиями из диапазона {@code [fromMinute, toMinute)}
+     *
+     * @param fromMinute номер первой минуты от 1970
+     * @param toMinute   номер минуты от 1970, следующей за последней
+     * @param visitor    получатель минут
+     * @throws IOException при ошибке чтения
+     */
+    public void scan(final long fromMinute, final long toMinute, final Visitor visitor) throws IOException {
+        for (int block = index.firstBlockEndingAtOrAfter(fromMinute);
+                block < index.size && index.firstMinutes[block] < toMinute; block++) {
+            final ByteBuffer buffer = ByteBuffer.allocate(index.lengths[block]);
+            MinuteHistoryFormat.readFully(data, buffer, index.offsets[block]);
+            ((Buffer) buffer).flip();
+            final int size = (int) MinuteHistoryFormat.getVarLong(buffer);
+            final long[] minutes = new long[size];
+            long minute = 0L;
+            for (int i = 0; i < size; i++) {
+                minute += MinuteHistoryFormat.getVarLong(buffer);
+                minutes[i] = minute;
+            }
+            for (int i = 0; i < size; i++) {
+                final long count = MinuteHistoryFormat.getVarLong(buffer);
+                if (minutes[i] >= fromMinute && minutes[i] < toMinute) {
+                    visitor.visit(minutes[i], count);
+                }
+            }
+        }
+    }
+
+    /**
+     * Выдаёт число событий за минуты {@code [fromMinute, toMinute)}
+     *
+     * @param fromMinute номер первой минуты от 1970
+     * @param toMinute   номер минуты от 1970, следующей за последней
+     * @return число событий за диапазон
+     * @throws IOException при ошибке чтения
+     */
+    public long sum(final long fromMinute, final long toMinute) throws IOException {
+        final long[] sum = new long[1];
+        scan(fromMinute, toMinute, (minute, count) -> sum[0] += count);
+        return sum[0];
+    }
+
+    @Override
+    public void close() throws IOException {
+        data.close();
+    }
+}
@@ -0,0 +1,219 @@
+package im.tretyakov.test.eventcounter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Дописывает поминутную историю событий в файл формата {@link MinuteHistoryFormat}.
+ * <p>
+ * Минуты копятся в текущем блоке, который кодируется в большой буфер при заполнении или при {@link #flush()}; в файлы буфер уходит
+ * только целиком, сначала данные, потом индекс. При открытии существующего файла недописанный хвост отрезается и запись продолжается
+ * за последним целым блоком. Хвост не длиннее одного буфера: если индекс отсутствует или покрывает меньше, файл не открывается,
+ * чтобы не стереть историю.
+ * <p>
+ * Объект не потокобезопасен.
+ *
+ * @author Kuldikin
+ */
+public final class MinuteHistoryWriter implements Closeable {
+
+    public static final int DEFAULT_BLOCK_MINUTES = 24 * 60;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final FileChannel data;
+
+    private final FileChannel index;
+
+    private final ByteBuffer dataBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private final ByteBuffer indexBuffer = ByteBuffer.allocate(MinuteHistoryFormat.INDEX_ENTRY_SIZE * 1024);
+
+    private final long[] blockMinutes;
+
+    private final long[] blockCounts;
+
+    private int blockSize;
+
+    private long dataPosition;
+
+    private long lastMinute = Long.MIN_VALUE;
+
+    private long firstUnflushedMinute = Long.MAX_VALUE;
+
+    public MinuteHistoryWriter(final Path path, final int blockMinutes) throws IOException {
+        if (blockMinutes < 1 || blockMinutes > BUFFER_SIZE / (2 * MinuteHistoryFormat.MAX_VARLONG_SIZE) - 1) {
+            throw new IllegalArgumentException("Illegal block size: " + blockMinutes);
+        }
+        this.blockMinutes = new long[blockMinutes];
+        this.blockCounts = new long[blockMinutes];
+        //индекс создаётся вместе с данными, поэтому данные без индекса - это чужой или повреждённый файл, а не недописанный хвост
+        if (Files.exists(path) && Files.size(path) > 0L && !Files.exists(indexPath(path))) {
+            throw new IOException("History index " + indexPath(path) + " is missing");
+        }
+        this.data = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            this.index = FileChannel.open(indexPath(path), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException | RuntimeException e) {
+            this.data.close();
+            throw e;
+        }
+        try {
+            final MinuteHistoryFormat.Index existing = MinuteHistoryFormat.readIndex(this.index, this.data.size());
+            this.dataPosition = existing.dataEnd();
+            //недописанным может быть только содержимое одного буфера, больший хвост без индекса отбрасывать нельзя
+            final long tail = this.data.size() - this.dataPosition;
+            if (tail > BUFFER_SIZE) {
+                throw new IOException("History index " + indexPath(path) + " covers only " + this.dataPosition + " of "
+                        + this.data.size() + " data bytes");
+            }
+            this.data.truncate(this.dataPosition);
+            this.index.truncate((long) existing.size * MinuteHistoryFormat.INDEX_ENTRY_SIZE);
+            this.data.position(this.dataPosition);
+            this.index.position((long) existing.size * MinuteHistoryFormat.INDEX_ENTRY_SIZE);
+            if (existing.size > 0) {
+                this.lastMinute = existing.lastMinutes[existing.size - 1];
+            }
+        } catch (IOException | RuntimeException e) {
+            close(this.data, this.index);
+            throw e;
+        }
+    }
+
+    public MinuteHistoryWriter(final Path path) throws IOException {
+        this(path, DEFAULT_BLOCK_MINUTES);
+    }
+
+    /**
+     * Выдаёт путь к файлу индекса, который лежит рядом с файлом данных
+     *
+     * @param path путь к файлу данных истории
+     * @return путь к файлу индекса
+     */
+    public static Path indexPath(final Path path) {
+        return Paths.get(path.toString() + MinuteHistoryFormat.INDEX_SUFFIX);
+    }
+
+    /**
+     * Выдаёт последнюю записанную минуту
+     *
+     * @return номер минуты от 1970 или {@link Long#MIN_VALUE}, если в файле ещё нет ни одной минуты
+     */
+    public long getLastMinute() {
+        return lastMinute;
+    }
+
+    /**
+     * Выдаёт первую минуту, которая ещё не отправлена в файл
+     *
+     * @return номер минуты от 1970 или {@link Long#MAX_VALUE}, если всё записанное уже в файле
+     */
+    public long getFirstUnflushedMinute() {
+        return firstUnflushedMinute;
+    }
+
+    /**
+     * Дописывает число событий за минуту. Минуты без событий не хранятся.
+     *
+     * @param minute номер минуты от 1970, больше всех ранее записанных
+     * @param count  число событий за минуту
+     * @throws IOException при ошибке записи
+     */
+    public void append(final long minute, final long count) throws IOException {
+        if (minute <= lastMinute) {
+            throw new IllegalArgumentException("Minute " + minute + " is not after the last written minute " + lastMinute);
+        }
+        if (count < 0L) {
+            throw new IllegalArgumentException("Negative count: " + count);
+        }
+        if (count == 0L) {
+            return;
+        }
+        blockMinutes[blockSize] = minute;
+        blockCounts[blockSize++] = count;
+        lastMinute = minute;
+        firstUnflushedMinute = Math.min(firstUnflushedMinute, minute);
+        if (blockSize == blockMinutes.length) {
+            encodeBlock();
+        }
+    }
+
+    /**
+     * Закрывает текущий блок и отправляет всё накопленное в файлы
+     *
+     * @throws IOException при ошибке записи
+     */
+    public void flush() throws IOException {
+        encodeBlock();
+        drain();
+    }
+
+    private void encodeBlock() throws IOException {
+        if (blockSize == 0) {
+            return;
+        }
+        if (dataBuffer.remaining() < (2 * blockSize + 1) * MinuteHistoryFormat.MAX_VARLONG_SIZE
+                || indexBuffer.remaining() < MinuteHistoryFormat.INDEX_ENTRY_SIZE) {
+            drain();
+        }
+        final int start = dataBuffer.position();
+        MinuteHistoryFormat.putVarLong(dataBuffer, blockSize);
+        MinuteHistoryFormat.putVarLong(dataBuffer, blockMinutes[0]);
+        for (int i = 1; i < blockSize; i++) {
+            MinuteHistoryFormat.putVarLong(dataBuffer, blockMinutes[i] - blockMinutes[i - 1]);
+        }
+        for (int i = 0; i < blockSize; i++) {
+            MinuteHistoryFormat.putVarLong(dataBuffer, blockCounts[i]);
+        }
+        final int length = dataBuffer.position() - start;
+        indexBuffer.putLong(blockMinutes[0]).putLong(blockMinutes[blockSize - 1]).putLong(dataPosition).putInt(length);
+        dataPosition += length;
+        blockSize = 0;
+    }
+
+    /**
+     * Пишет буферы в файлы: индекс строго после данных, на которые он ссылается. Данные сбрасываются на диск до записи индекса, иначе
+     * после сбоя ОС индекс мог бы пережить свои блоки.
+     */
+    private void drain() throws IOException {
+        ((Buffer) dataBuffer).flip();
+        while (dataBuffer.hasRemaining()) {
+            data.write(dataBuffer);
+        }
+        ((Buffer) dataBuffer).clear();
+        if (indexBuffer.position() > 0) {
+            data.force(false);
+        }
+        ((Buffer) indexBuffer).flip();
+        while (indexBuffer.hasRemaining()) {
+            index.write(indexBuffer);
+        }
+        ((Buffer) indexBuffer).clear();
+        //минуты открытого блока ещё в памяти
+        firstUnflushedMinute = blockSize > 0 ? blockMinutes[0] : Long.MAX_VALUE;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            close(data, index);
+        }
+    }
+
+    private static void close(final Closeable first, final Closeable second) throws IOException {
+        try {
+            first.close();
+        } finally {
+            second.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package im.tretyakov.test.eventcounter.replay;
+
+import com.kuldikin.test.eventcounter.Clock;
+import im.tretyakov.test.eventcounter.EventCounter;
+import im.tretyakov.test.eventcounter.EventCounterCyclicBufferImpl;
+import im.tretyakov.test.eventcounter.MinuteHistoryExporter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Создаёт для {@link TraceReplay} {@link EventCounterCyclicBufferImpl} с подключённой {@link MinuteHistoryExporter}, чтобы прогон
+ * трассы показывал, во что выгрузка истории обходится учёту событий.
+ * <p>
+ * Каждый созданный счётчик выгружает историю в свой файл {@code history-<n>.bin} в заданном каталоге. Часы прогона идут намного быстрее
+ * реальных, поэтому каждый запуск выгрузки догоняет сразу много минут.
+ *
+ * @author Kuldikin
+ */
+final class ExportingCounterFactory implements Function<Clock, EventCounter>, Closeable {
+
+    private final Path directory;
+
+    private final long periodMillis;
+
+    private final List<MinuteHistoryExporter> exporters = new ArrayList<>();
+
+    private final List<Path> files = new ArrayList<>();
+
+    ExportingCounterFactory(final Path directory, final long periodMillis) {
+        this.directory = directory;
+        this.periodMillis = periodMillis;
+    }
+
+    @Override
+    public EventCounter apply(final Clock clock) {
+        final EventCounterCyclicBufferImpl counter = new EventCounterCyclicBufferImpl(clock);
+        final Path file = directory.resolve("history-" + files.size() + ".bin");
+        try {
+            exporters.add(new MinuteHistoryExporter(counter, file, periodMillis));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        files.add(file);
+        return counter;
+    }
+
+    /**
+     * Выдаёт файлы истории созданных счётчиков в порядке создания
+     *
+     * @return пути к файлам истории
+     */
+    List<Path> getFiles() {
+        return files;
+    }
+
+    /**
+     * Останавливает выгрузку всех созданных счётчиков
+     *
+     * @throws IOException если какая-нибудь выгрузка завершилась ошибкой
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (MinuteHistoryExporter exporter : exporters) {
+            try {
+                exporter.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        exporters.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
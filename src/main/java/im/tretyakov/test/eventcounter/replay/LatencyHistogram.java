@@ -0,0 +1,104 @@
+package im.tretyakov.test.eventcounter.replay;
+
+import java.io.PrintStream;
+
+/**
+ * Гистограмма задержек с логарифмическими (по степеням двойки) корзинами.
+ * <p>
+ * Запись значения не выделяет память, поэтому гистограмму можно заполнять прямо в цикле прогона. Перцентили считаются с точностью до
+ * корзины: возвращается верхняя граница корзины, в которую попал перцентиль.
+ *
+ * @author Kuldikin
+ */
+public final class LatencyHistogram {
+
+    private static final int BUCKETS = 64;
+
+    private final String name;
+
+    private final long[] buckets = new long[BUCKETS];
+
+    private long count;
+
+    private long sum;
+
+    private long min = Long.MAX_VALUE;
+
+    private long max;
+
+    public LatencyHistogram(final String name) {
+        this.name = name;
+    }
+
+    /**
+     * Учитывает одно измерение
+     *
+     * @param nanos задержка в нс
+     */
+    public void record(final long nanos) {
+        final long value = nanos < 0L ? 0L : nanos;
+        //корзина i содержит значения из [2^i, 2^(i+1)), ноль попадает в нулевую корзину
+        this.buckets[value == 0L ? 0 : BUCKETS - 1 - Long.numberOfLeadingZeros(value)]++;
+        this.count++;
+        this.sum += value;
+        if (value < this.min) {
+            this.min = value;
+        }
+        if (value > this.max) {
+            this.max = value;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMin() {
+        return count == 0L ? 0L : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0L ? 0D : (double) sum / count;
+    }
+
+    /**
+     * Выдаёт оценку перцентиля сверху
+     *
+     * @param percentile перцентиль от 0 до 100
+     * @return верхняя граница корзины, содержащей перцентиль, в нс
+     */
+    public long getPercentile(final double percentile) {
+        if (count == 0L) {
+            return 0L;
+        }
+        final long rank = (long) Math.ceil(count * percentile / 100D);
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank && buckets[i] > 0L) {
+                //верхняя граница корзины, но не больше реального максимума
+                return Math.min(i == BUCKETS - 1 ? Long.MAX_VALUE : (2L << i) - 1L, max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Печатает сводку по гистограмме в одну строку
+     *
+     * @param out куда печатать
+     */
+    public void print(final PrintStream out) {
+        out.printf("  %-8s n=%-10d min=%-8d mean=%-10.1f p50=%-8d p90=%-8d p99=%-8d p99.9=%-8d max=%d (ns)%n",
+                name, count, getMin(), getMean(), getPercentile(50D), getPercentile(90D), getPercentile(99D),
+                getPercentile(99.9D), max);
+    }
+}
@@ -0,0 +1,74 @@
+package im.tretyakov.test.eventcounter.replay;
+
+import com.kuldikin.test.eventcounter.Clock;
+import im.tretyakov.test.eventcounter.EventCounter;
+import java.util.Arrays;
+
+/**
+ * Эталонная реализация интерфейса для учета однотипных событий, с которой сверяются результаты при прогоне трассы.
+ * <p>
+ * Каждая ячейка кольцевого буфера хранит вместе со счётчиком номер секунды от 1970, к которой он относится, поэтому устаревшие значения
+ * никогда не попадают в сумму, сколько бы ни длилась пауза между событиями. Реализация не потокобезопасна и не оптимизирована: запрос
+ * всегда обходит всё окно целиком.
+ *
+ * @author Kuldikin
+ */
+final class ReferenceEventCounter implements EventCounter {
+
+    private static final long MILLIS_IN_SECOND = 1000L;
+
+    private static final int SECONDS_IN_MINUTE = 60;
+
+    private static final int SECONDS_IN_HOUR = SECONDS_IN_MINUTE * 60;
+
+    private static final int SECONDS_IN_DAY = 24 * SECONDS_IN_HOUR;
+
+    private final long[] events = new long[SECONDS_IN_DAY];
+
+    private final long[] seconds = new long[SECONDS_IN_DAY];
+
+    private final Clock clock;
+
+    ReferenceEventCounter(final Clock clock) {
+        this.clock = clock;
+        Arrays.fill(this.seconds, -1L);
+    }
+
+    @Override
+    public void countEvent() {
+        final long second = clock.getTime() / MILLIS_IN_SECOND;
+        final int index = (int) (second % SECONDS_IN_DAY);
+        if (this.seconds[index] != second) {
+            this.seconds[index] = second;
+            this.events[index] = 0L;
+        }
+        this.events[index]++;
+    }
+
+    @Override
+    public long eventsByLastMinute() {
+        return eventsByLastSeconds(SECONDS_IN_MINUTE);
+    }
+
+    @Override
+    public long eventsByLastHour() {
+        return eventsByLastSeconds(SECONDS_IN_HOUR);
+    }
+
+    @Override
+    public long eventsByLastDay() {
+        return eventsByLastSeconds(SECONDS_IN_DAY);
+    }
+
+    private long eventsByLastSeconds(final int window) {
+        final long now = clock.getTime() / MILLIS_IN_SECOND;
+        long sum = 0L;
+        for (long second = now - window + 1; second <= now; second++) {
+            final int index = (int) (second % SECONDS_IN_DAY);
+            if (this.seconds[index] == second) {
+                sum += this.events[index];
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,195 @@
+package im.tretyakov.test.eventcounter.replay;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Генератор синтетических трасс событий для {@link TraceReplay}.
+ * <p>
+ * Время генерируется посекундно: для каждой секунды выбирается интенсивность по профилю нагрузки, количество событий берётся из
+ * распределения Пуассона, а миллисекунды внутри секунды - равномерно. По умолчанию трасса начинается за час до полуночи, так что
+ * переход через полночь случается в самом начале прогона.
+ * <p>
+ * Использование: {@code TraceGenerator <bursty|diurnal|sparse> <file> [days] [eventsPerSecond] [seed]}
+ *
+ * @author Kuldikin
+ */
+public final class TraceGenerator {
+
+    private static final long MILLIS_IN_SECOND = 1000L;
+
+    private static final int SECONDS_IN_HOUR = 60 * 60;
+
+    private static final int SECONDS_IN_DAY = 24 * SECONDS_IN_HOUR;
+
+    /**
+     * 18.07.2016 23:00:00 UTC
+     */
+    public static final long DEFAULT_START_MILLIS = (17_000L * SECONDS_IN_DAY + 23L * SECONDS_IN_HOUR) * MILLIS_IN_SECOND;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Профиль нагрузки
+     */
+    public enum Profile {
+        /**
+         * Слабый фон с редкими всплесками в 20 раз выше номинальной интенсивности длиной до 30 секунд
+         */
+        BURSTY,
+        /**
+         * Суточная синусоида: минимум (10% интенсивности) в полночь, максимум в полдень
+         */
+        DIURNAL,
+        /**
+         * Несколько событий в час и паузы от часа до полутора суток
+         */
+        SPARSE
+    }
+
+    private final Profile profile;
+
+    private final double eventsPerSecond;
+
+    private final Random random;
+
+    private int burstLeft;
+
+    private int silenceLeft;
+
+    public TraceGenerator(final Profile profile, final double eventsPerSecond, final long seed) {
+        this.profile = profile;
+        this.eventsPerSecond = eventsPerSecond;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Пишет трассу в файл, перезаписывая его
+     *
+     * @param path        путь к файлу трассы
+     * @param startMillis время начала трассы в мс
+     * @param seconds     длительность трассы в секундах
+     * @return количество записанных событий
+     * @throws IOException при ошибке записи
+     */
+    public long generate(final Path path, final long startMillis, final long seconds) throws IOException {
+        final long startSecond = startMillis / MILLIS_IN_SECOND;
+        long count = 0L;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            //заголовок с нулевым количеством, настоящее допишем в конце
+            buffer.putInt(TraceReader.MAGIC).putInt(TraceReader.VERSION).putLong(0L);
+            int[] offsets = new int[16];
+            for (long second = startSecond; second < startSecond + seconds; second++) {
+                final int events = poisson(rate(second));
+                if (events == 0) {
+                    continue;
+                }
+                if (events > offsets.length) {
+                    offsets = new int[Math.max(events, offsets.length * 2)];
+                }
+                for (int i = 0; i < events; i++) {
+                    offsets[i] = random.nextInt((int) MILLIS_IN_SECOND);
+                }
+                Arrays.sort(offsets, 0, events);
+                for (int i = 0; i < events; i++) {
+                    if (buffer.remaining() < 8) {
+                        drain(channel, buffer);
+                    }
+                    buffer.putLong(second * MILLIS_IN_SECOND + offsets[i]);
+                }
+                count += events;
+            }
+            drain(channel, buffer);
+            buffer.putLong(count);
+            ((Buffer) buffer).flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, 8L + buffer.position());
+            }
+        }
+        return count;
+    }
+
+    private static void drain(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        ((Buffer) buffer).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        ((Buffer) buffer).clear();
+    }
+
+    /**
+     * Выдаёт среднее количество событий в данную секунду по профилю нагрузки
+     */
+    private double rate(final long second) {
+        switch (profile) {
+            case BURSTY:
+                if (burstLeft == 0 && random.nextInt(600) == 0) {
+                    burstLeft = 1 + random.nextInt(30);
+                }
+                if (burstLeft > 0) {
+                    burstLeft--;
+                    return eventsPerSecond * 20D;
+                }
+                return eventsPerSecond * 0.05D;
+            case DIURNAL:
+                final double phase = 2D * Math.PI * (second % SECONDS_IN_DAY) / SECONDS_IN_DAY;
+                return eventsPerSecond * (0.1D + 0.9D * (1D - Math.cos(phase)) / 2D);
+            case SPARSE:
+                if (silenceLeft == 0 && random.nextInt(2 * SECONDS_IN_HOUR) == 0) {
+                    silenceLeft = SECONDS_IN_HOUR + random.nextInt(35 * SECONDS_IN_HOUR);
+                }
+                if (silenceLeft > 0) {
+                    silenceLeft--;
+                    return 0D;
+                }
+                return eventsPerSecond / SECONDS_IN_HOUR;
+            default:
+                throw new IllegalStateException("Unknown profile: " + profile);
+        }
+    }
+
+    private int poisson(final double mean) {
+        if (mean <= 0D) {
+            return 0;
+        }
+        if (mean > 30D) {
+            //при большой интенсивности хватает нормального приближения
+            return (int) Math.max(0L, Math.round(mean + Math.sqrt(mean) * random.nextGaussian()));
+        }
+        final double limit = Math.exp(-mean);
+        int k = 0;
+        double p = random.nextDouble();
+        while (p > limit) {
+            k++;
+            p *= random.nextDouble();
+        }
+        return k;
+    }
+
+    public static void main(String... args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: TraceGenerator <bursty|diurnal|sparse> <file> [days] [eventsPerSecond] [seed]");
+            System.exit(1);
+        }
+        final Profile profile = Profile.valueOf(args[0].toUpperCase(Locale.ROOT));
+        final Path path = Paths.get(args[1]);
+        final double days = args.length > 2 ? Double.valueOf(args[2]) : 1D;
+        final double eventsPerSecond = args.length > 3 ? Double.valueOf(args[3]) : 100D;
+        final long seed = args.length > 4 ? Long.valueOf(args[4]) : 42L;
+        final long start = System.currentTimeMillis();
+        final long count = new TraceGenerator(profile, eventsPerSecond, seed)
+                .generate(path, DEFAULT_START_MILLIS, (long) (days * SECONDS_IN_DAY));
+        System.out.printf("[Generator] %s: %d events over %.2f days written to %s in %d ms%n",
+                profile, count, days, path, System.currentTimeMillis() - start);
+    }
+}
@@ -0,0 +1,137 @@
+package im.tretyakov.test.eventcounter.replay;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.NoSuchElementException;
+
+/**
+ * Чтение бинарной трассы событий через отображение файла в память.
+ * <p>
+ * Формат файла: заголовок {@link #HEADER_SIZE} байт (magic, версия, количество событий), за ним неубывающие отметки времени событий в мс
+ * (long, big-endian). Файл отображается окнами по {@link #SEGMENT_SIZE} байт, поэтому размер трассы не ограничен 2 ГБ.
+ *
+ * @author Kuldikin
+ */
+public final class TraceReader implements Closeable {
+
+    /**
+     * "EVTR"
+     */
+    static final int MAGIC = 0x45565452;
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 4 + 4 + 8;
+
+    //кратно 8, чтобы отметка времени никогда не попадала на границу окон
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private final FileChannel channel;
+
+    private final long size;
+
+    private long index;
+
+    private long segmentEnd;
+
+    private MappedByteBuffer segment;
+
+    private TraceReader(final FileChannel channel) throws IOException {
+        this.channel = channel;
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new IOException("Trace header is truncated");
+            }
+        }
+        ((Buffer) header).flip();
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not an event trace file");
+        }
+        final int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported trace version: " + version);
+        }
+        this.size = header.getLong();
+        if (channel.size() < HEADER_SIZE + this.size * 8L) {
+            throw new IOException("Trace is truncated: expected " + this.size + " events");
+        }
+    }
+
+    /**
+     * Открывает трассу для чтения
+     *
+     * @param path путь к файлу трассы
+     * @return открытая трасса, указатель стоит на первом событии
+     * @throws IOException если файл не является трассой или повреждён
+     */
+    public static TraceReader open(final Path path) throws IOException {
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new TraceReader(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Выдаёт количество событий в трассе
+     *
+     * @return количество событий в трассе
+     */
+    public long size() {
+        return size;
+    }
+
+    public boolean hasNext() {
+        return index < size;
+    }
+
+    /**
+     * Выдаёт отметку времени следующего события
+     *
+     * @return отметка времени события в мс
+     */
+    public long next() {
+        if (index >= size) {
+            throw new NoSuchElementException();
+        }
+        if (index == segmentEnd) {
+            map(index);
+        }
+        index++;
+        return segment.getLong();
+    }
+
+    /**
+     * Возвращает указатель на первое событие трассы
+     */
+    public void rewind() {
+        index = 0L;
+        segmentEnd = 0L;
+        segment = null;
+    }
+
+    private void map(final long from) {
+        final long length = Math.min(SEGMENT_SIZE, (size - from) * 8L);
+        try {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + from * 8L, length);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to map trace segment at event " + from, e);
+        }
+        segmentEnd = from + length / 8L;
+    }
+
+    @Override
+    public void close() throws IOException {
+        segment = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,287 @@
+package im.tretyakov.test.eventcounter.replay;
+
+import com.kuldikin.test.eventcounter.Clock;
+import im.tretyakov.test.eventcounter.EventCounter;
+import im.tretyakov.test.eventcounter.EventCounterCyclicBufferImpl;
+import im.tretyakov.test.eventcounter.EventCounterStreamImpl;
+import im.tretyakov.test.eventcounter.MinuteHistoryReader;
+import im.tretyakov.test.eventcounter.MinuteHistoryWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Прогон трассы событий через реализацию {@link EventCounter} со сжатием времени.
+ * <p>
+ * Реализация получает {@link Clock.CustomizableClock}, который переводится на отметку времени каждого события из трассы, поэтому сутки или
+ * неделя модельного времени проигрываются за секунды. Трасса проигрывается дважды:
+ * <ol>
+ * <li>на пропускную способность - только {@link EventCounter#countEvent()}, без замеров и сверки;</li>
+ * <li>с замерами - задержка каждого вызова попадает в гистограмму своей фазы, а каждые {@code queryIntervalMillis} модельного времени
+ * (в том числе посреди пауз между событиями) результаты всех трёх запросов сверяются с {@link ReferenceEventCounter}.</li>
+ * </ol>
+ * <p>
+ * Реализация {@code cyclic-export} - кольцевой буфер с фоновой выгрузкой поминутной истории раз в {@link #EXPORT_PERIOD_MILLIS} мс во
+ * временный файл: сравнение её пропускной способности с {@code cyclic} показывает цену выгрузки для учёта событий.
+ * <p>
+ * Использование: {@code TraceReplay <file> [cyclic|cyclic-export|stream[,...]] [queryIntervalSeconds]}
+ *
+ * @author Kuldikin
+ */
+public final class TraceReplay {
+
+    private static final long MILLIS_IN_SECOND = 1000L;
+
+    private static final int MAX_MISMATCH_SAMPLES = 10;
+
+    static final long EXPORT_PERIOD_MILLIS = 1L;
+
+    private TraceReplay() {
+    }
+
+    /**
+     * Результат прогона трассы
+     */
+    public static final class Report {
+
+        private final String name;
+
+        private long events;
+
+        private long simulatedMillis;
+
+        private long ingestNanos;
+
+        private long queries;
+
+        private final LatencyHistogram countLatency = new LatencyHistogram("count");
+
+        private final LatencyHistogram minuteLatency = new LatencyHistogram("minute");
+
+        private final LatencyHistogram hourLatency = new LatencyHistogram("hour");
+
+        private final LatencyHistogram dayLatency = new LatencyHistogram("day");
+
+        private long minuteMismatches;
+
+        private long hourMismatches;
+
+        private long dayMismatches;
+
+        private final List<String> mismatchSamples = new ArrayList<>();
+
+        Report(final String name) {
+            this.name = name;
+        }
+
+        public long getEvents() {
+            return events;
+        }
+
+        public long getSimulatedMillis() {
+            return simulatedMillis;
+        }
+
+        public long getQueries() {
+            return queries;
+        }
+
+        public long getMismatches() {
+            return minuteMismatches + hourMismatches + dayMismatches;
+        }
+
+        /**
+         * Выдаёт пропускную способность прогона без замеров
+         *
+         * @return событий в секунду реального времени
+         */
+        public double getEventsPerSecond() {
+            return ingestNanos == 0L ? 0D : events * 1e9D / ingestNanos;
+        }
+
+        /**
+         * Выдаёт коэффициент сжатия времени прогона без замеров
+         *
+         * @return сколько модельных секунд проигрывается за секунду реального времени
+         */
+        public double getCompression() {
+            return ingestNanos == 0L ? 0D : simulatedMillis * 1e6D / ingestNanos;
+        }
+
+        public void print(final PrintStream out) {
+            out.printf("[%s] Events: %d, simulated time: %.2f hours%n", name, events, simulatedMillis / 3_600_000D);
+            out.printf("[%s] Throughput: %.0f events/s, time compression: %.0fx%n", name, getEventsPerSecond(), getCompression());
+            out.printf("[%s] Latency:%n", name);
+            countLatency.print(out);
+            minuteLatency.print(out);
+            hourLatency.print(out);
+            dayLatency.print(out);
+            out.printf("[%s] Queries checked: %d, mismatches: minute=%d hour=%d day=%d%n",
+                    name, queries, minuteMismatches, hourMismatches, dayMismatches);
+            for (String sample : mismatchSamples) {
+                out.printf("[%s]   %s%n", name, sample);
+            }
+        }
+
+        private void check(final String window, final long millis, final long expected, final long actual) {
+            if (expected == actual) {
+                return;
+            }
+            switch (window) {
+                case "minute":
+                    minuteMismatches++;
+                    break;
+                case "hour":
+                    hourMismatches++;
+                    break;
+                default:
+                    dayMismatches++;
+            }
+            if (mismatchSamples.size() < MAX_MISMATCH_SAMPLES) {
+                mismatchSamples.add(String.format("t=%d %s: expected %d, actual %d", millis, window, expected, actual));
+            }
+        }
+    }
+
+    /**
+     * Проигрывает трассу через реализацию
+     *
+     * @param trace               трасса, читается с начала
+     * @param name                имя реализации для отчёта
+     * @param factory             создаёт проверяемую реализацию по часам
+     * @param queryIntervalMillis период сверки запросов в модельном времени
+     * @return результат прогона
+     */
+    public static Report replay(final TraceReader trace, final String name, final Function<Clock, EventCounter> factory,
+            final long queryIntervalMillis) {
+        if (queryIntervalMillis <= 0L) {
+            throw new IllegalArgumentException("Query interval must be positive: " + queryIntervalMillis);
+        }
+        final Report report = new Report(name);
+        if (trace.size() == 0L) {
+            return report;
+        }
+        trace.rewind();
+        final long startMillis = trace.next();
+        report.events = trace.size();
+
+        //проход 1: только пропускная способность
+        trace.rewind();
+        Clock.CustomizableClock clock = new Clock.CustomizableClock(startMillis);
+        EventCounter counter = factory.apply(clock);
+        long now = startMillis;
+        final long ingestStart = System.nanoTime();
+        while (trace.hasNext()) {
+            final long millis = trace.next();
+            if (millis > now) {
+                now = clock.incClock(millis - now);
+            }
+            counter.countEvent();
+        }
+        report.ingestNanos = System.nanoTime() - ingestStart;
+        report.simulatedMillis = now - startMillis;
+
+        //проход 2: задержки по фазам и сверка с эталоном
+        trace.rewind();
+        clock = new Clock.CustomizableClock(startMillis);
+        counter = factory.apply(clock);
+        final EventCounter reference = new ReferenceEventCounter(clock);
+        now = startMillis;
+        long nextQuery = startMillis + queryIntervalMillis;
+        while (trace.hasNext()) {
+            final long millis = trace.next();
+            while (nextQuery <= millis) {
+                now = clock.incClock(nextQuery - now);
+                query(counter, reference, now, report);
+                nextQuery += queryIntervalMillis;
+            }
+            if (millis > now) {
+                now = clock.incClock(millis - now);
+            }
+            final long start = System.nanoTime();
+            counter.countEvent();
+            report.countLatency.record(System.nanoTime() - start);
+            reference.countEvent();
+        }
+        query(counter, reference, now, report);
+        return report;
+    }
+
+    private static void query(final EventCounter counter, final EventCounter reference, final long millis, final Report report) {
+        long start = System.nanoTime();
+        final long minute = counter.eventsByLastMinute();
+        report.minuteLatency.record(System.nanoTime() - start);
+        start = System.nanoTime();
+        final long hour = counter.eventsByLastHour();
+        report.hourLatency.record(System.nanoTime() - start);
+        start = System.nanoTime();
+        final long day = counter.eventsByLastDay();
+        report.dayLatency.record(System.nanoTime() - start);
+        report.queries++;
+        report.check("minute", millis, reference.eventsByLastMinute(), minute);
+        report.check("hour", millis, reference.eventsByLastHour(), hour);
+        report.check("day", millis, reference.eventsByLastDay(), day);
+    }
+
+    private static Function<Clock, EventCounter> implementation(final String name) {
+        switch (name) {
+            case "cyclic":
+                return EventCounterCyclicBufferImpl::new;
+            case "stream":
+                return EventCounterStreamImpl::new;
+            default:
+                throw new IllegalArgumentException("Unknown implementation: " + name);
+        }
+    }
+
+    private static void replayWithExport(final TraceReader trace, final String name, final long queryIntervalMillis)
+            throws IOException {
+        final Path directory = Files.createTempDirectory("minute-history");
+        final ExportingCounterFactory factory = new ExportingCounterFactory(directory, EXPORT_PERIOD_MILLIS);
+        try {
+            final Report report;
+            try {
+                report = replay(trace, name, factory, queryIntervalMillis);
+            } finally {
+                factory.close();
+            }
+            report.print(System.out);
+            //история второго прохода, где часы доведены до последней сверки
+            final Path history = factory.getFiles().get(factory.getFiles().size() - 1);
+            try (MinuteHistoryReader reader = MinuteHistoryReader.open(history)) {
+                System.out.printf("[%s] History: %d events in %d blocks, %d bytes%n", name, reader.sum(Long.MIN_VALUE, Long.MAX_VALUE),
+                        reader.getBlocks(), Files.size(history));
+            }
+        } finally {
+            for (Path file : factory.getFiles()) {
+                Files.deleteIfExists(file);
+                Files.deleteIfExists(MinuteHistoryWriter.indexPath(file));
+            }
+            Files.delete(directory);
+        }
+    }
+
+    public static void main(String... args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: TraceReplay <file> [cyclic|cyclic-export|stream[,...]] [queryIntervalSeconds]");
+            System.exit(1);
+        }
+        final Path path = Paths.get(args[0]);
+        final String[] names = (args.length > 1 ? args[1] : "cyclic").split(",");
+        final long queryIntervalMillis = (args.length > 2 ? Long.valueOf(args[2]) : 60L) * MILLIS_IN_SECOND;
+        try (TraceReader trace = TraceReader.open(path)) {
+            for (String name : names) {
+                if ("cyclic-export".equals(name)) {
+                    replayWithExport(trace, name, queryIntervalMillis);
+                } else {
+                    replay(trace, name, implementation(name), queryIntervalMillis).print(System.out);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package im.tretyakov.test.eventcounter;
+
+import com.kuldikin.test.eventcounter.Clock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Тесты для массовых запросов к счётчикам событий
+ *
+ * @author Kuldikin
+ */
+public class EventCounterBulkQueryTest extends TestCase {
+
+    private static final long STEP_MILLIS = 61_000L;
+
+    private static final int STEPS = 120;
+
+    public void testMatchesExpectedCounts() throws Exception {
+        final long startMillis = 23L * 60L * 60L * 1000L;
+        final Clock.CustomizableClock clock = new Clock.CustomizableClock(startMillis);
+        final List<EventCounter> counters = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            counters.add(i % 2 == 0 ? new EventCounterCyclicBufferImpl(clock) : new EventCounterStreamImpl(clock));
+        }
+        //счётчик i получает i % 5 событий на каждом шаге, шаги через 61 секунду на протяжении двух часов, в том числе через полночь
+        for (int step = 0; step < STEPS; step++) {
+            if (step > 0) {
+                clock.incClock(STEP_MILLIS);
+            }
+            for (int i = 0; i < counters.size(); i++) {
+                for (int e = 0; e < i % 5; e++) {
+                    counters.get(i).countEvent();
+                }
+            }
+        }
+        assertCounts(counters, startMillis, clock.getTime());
+
+        //и после паузы без событий
+        clock.incClock(30L * 60L * 1000L);
+        assertCounts(counters, startMillis, clock.getTime());
+    }
+
+    private static void assertCounts(final List<EventCounter> counters, final long startMillis, final long nowMillis) {
+        final EventCounterBulkQuery.Window[] windows = EventCounterBulkQuery.Window.values();
+        final long[] result = EventCounterBulkQuery.query(counters, windows);
+        assertEquals(counters.size() * windows.length, result.length);
+        for (int i = 0; i < counters.size(); i++) {
+            for (int j = 0; j < windows.length; j++) {
+                final long expected = (i % 5) * stepsInWindow(startMillis, nowMillis, windows[j].getSeconds());
+                assertEquals(windows[j] + ", счётчик " + i, expected, result[i * windows.length + j]);
+            }
+        }
+    }
+
+    /**
+     * Число шагов, секунда которых попадает в окно [now - seconds + 1, now]
+     */
+    private static long stepsInWindow(final long startMillis, final long nowMillis, final int seconds) {
+        final long now = nowMillis / 1000L;
+        long steps = 0L;
+        for (int step = 0; step < STEPS; step++) {
+            final long second = (startMillis + step * STEP_MILLIS) / 1000L;
+            if (second > now - seconds && second <= now) {
+                steps++;
+            }
+        }
+        return steps;
+    }
+
+    public void testWindowOrder() throws Exception {
+        final Clock.CustomizableClock clock = new Clock.CustomizableClock(0L);
+        final EventCounter counter = new EventCounterCyclicBufferImpl(clock);
+        counter.countEvent();
+        clock.incClock(2L * 60L * 1000L);
+        counter.countEvent();
+        counter.countEvent();
+
+        final long[] result = EventCounterBulkQuery.query(Collections.singletonList(counter),
+                EventCounterBulkQuery.Window.DAY, EventCounterBulkQuery.Window.MINUTE);
+        assertEquals(3L, result[0]);
+        assertEquals(2L, result[1]);
+    }
+
+    public void testEmpty() throws Exception {
+        assertEquals(0, EventCounterBulkQuery.query(new ArrayList<EventCounter>(), EventCounterBulkQuery.Window.DAY).length);
+        assertEquals(0, EventCounterBulkQuery.query(Collections.singletonList(new EventCounterCyclicBufferImpl())).length);
+    }
+}
@@ -0,0 +1,484 @@
+package im.tretyakov.test.eventcounter;
+
+import com.kuldikin.test.eventcounter.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Нагрузочные тесты реализаций из множества потоков с проверкой линеаризуемости.
+ * <p>
+ * В основных прогонах часы стоят на месте, поэтому все три окна должны возвращать число учтённых событий, а эталонная модель - обычный
+ * счётчик. Каждая операция получает отметки начала и конца из общего счётчика тиков; результат чтения линеаризуем, если он не меньше
+ * числа событий, завершившихся до начала чтения, не больше числа событий, начавшихся до его конца, и не меньше результата любого чтения,
+ * завершившегося до его начала.
+ * <p>
+ * Отдельный прогон проверяет то же при движущихся часах: один поток переводит их через границы минут и полночь, а результат каждого
+ * чтения сверяется с посекундной моделью для секунды, которую видела операция.
+ * <p>
+ * Тест на виртуальных потоках запускается только на JDK 21+ (профиль {@code jdk21} в pom.xml), на более старых JDK он пропускается.
+ *
+ * @author Kuldikin
+ */
+public class EventCounterConcurrencyTest {
+
+    //середина суток, чтобы окна не пересекали полночь
+    private static final long NOON_MILLIS = 17_000L * 24L * 60L * 60L * 1000L + 12L * 60L * 60L * 1000L;
+
+    //за 70 секунд до полуночи: прогон с движущимися часами пересекает три границы минут и полночь
+    private static final long BEFORE_MIDNIGHT_MILLIS = 17_001L * 24L * 60L * 60L * 1000L - 70_000L;
+
+    private static final long CLOCK_STEP_MILLIS = 100L;
+
+    private static final int CLOCK_STEPS = 1_400;
+
+    private static final int[] WINDOWS = {60, 60 * 60, 24 * 60 * 60};
+
+    private static final String VIRTUAL_THREADS_PROPERTY = "eventcounter.stress.virtualThreads";
+
+    private static final String[] IMPLEMENTATIONS = {"cyclic", "stream"};
+
+    /**
+     * История операций одного потока
+     */
+    private static final class History {
+
+        private final long[] countStarts;
+
+        private final long[] countEnds;
+
+        private int counts;
+
+        private final long[] readStarts;
+
+        private final long[] readEnds;
+
+        private final long[] readValues;
+
+        private int reads;
+
+        History(final int operations) {
+            this.countStarts = new long[operations];
+            this.countEnds = new long[operations];
+            this.readStarts = new long[operations];
+            this.readEnds = new long[operations];
+            this.readValues = new long[operations];
+        }
+    }
+
+    private static Function<Clock, EventCounter> implementation(final String name) {
+        switch (name) {
+            case "cyclic":
+                return EventCounterCyclicBufferImpl::new;
+            case "stream":
+                return EventCounterStreamImpl::new;
+            default:
+                throw new IllegalArgumentException("Unknown implementation: " + name);
+        }
+    }
+
+    /**
+     * Выполняет операции над счётчиком: примерно 9 из 10 - учёт события, остальные - запросы по очереди за минуту, час и сутки
+     */
+    private static History run(final EventCounter counter, final AtomicLong ticks, final int operations, final long seed) {
+        final History history = new History(operations);
+        final Random random = new Random(seed);
+        for (int i = 0; i < operations; i++) {
+            if (random.nextInt(10) != 0) {
+                history.countStarts[history.counts] = ticks.getAndIncrement();
+                counter.countEvent();
+                history.countEnds[history.counts++] = ticks.getAndIncrement();
+            } else {
+                final long start = ticks.getAndIncrement();
+                final long value;
+                switch (history.reads % 3) {
+                    case 0:
+                        value = counter.eventsByLastMinute();
+                        break;
+                    case 1:
+                        value = counter.eventsByLastHour();
+                        break;
+                    default:
+                        value = counter.eventsByLastDay();
+                }
+                history.readStarts[history.reads] = start;
+                history.readEnds[history.reads] = ticks.getAndIncrement();
+                history.readValues[history.reads++] = value;
+            }
+        }
+        return history;
+    }
+
+    /**
+     * Проверяет историю на линеаризуемость относительно модели счётчика
+     *
+     * @return число учтённых событий
+     */
+    private static long checkLinearizable(final String name, final List<History> histories) {
+        int counts = 0;
+        int reads = 0;
+        for (History history : histories) {
+            counts += history.counts;
+            reads += history.reads;
+        }
+        final long[] countStarts = new long[counts];
+        final long[] countEnds = new long[counts];
+        final long[] readStarts = new long[reads];
+        final long[] readEnds = new long[reads];
+        final long[] readValues = new long[reads];
+        //конец чтения в старших 32 битах, результат в младших: сортировка по концу сохраняет пару
+        final long[] readsByEnd = new long[reads];
+        int c = 0;
+        int r = 0;
+        for (History history : histories) {
+            System.arraycopy(history.countStarts, 0, countStarts, c, history.counts);
+            System.arraycopy(history.countEnds, 0, countEnds, c, history.counts);
+            c += history.counts;
+            for (int i = 0; i < history.reads; i++, r++) {
+                readStarts[r] = history.readStarts[i];
+                readEnds[r] = history.readEnds[i];
+                readValues[r] = history.readValues[i];
+                readsByEnd[r] = history.readEnds[i] << 32 | history.readValues[i];
+            }
+        }
+        Arrays.sort(countStarts);
+        Arrays.sort(countEnds);
+        Arrays.sort(readsByEnd);
+        //максимум результатов среди чтений, завершившихся не позже данного
+        final long[] maxValueByEnd = new long[reads];
+        for (int i = 0; i < reads; i++) {
+            final long value = readsByEnd[i] & 0xFFFFFFFFL;
+            maxValueByEnd[i] = i == 0 ? value : Math.max(maxValueByEnd[i - 1], value);
+        }
+        for (int i = 0; i < reads; i++) {
+            final long completedBefore = lowerBound(countEnds, readStarts[i]);
+            final long startedBefore = lowerBound(countStarts, readEnds[i]);
+            assertTrue(String.format("[%s] read [%d, %d] returned %d, but %d events had already completed",
+                    name, readStarts[i], readEnds[i], readValues[i], completedBefore), readValues[i] >= completedBefore);
+            assertTrue(String.format("[%s] read [%d, %d] returned %d, but only %d events had started",
+                    name, readStarts[i], readEnds[i], readValues[i], startedBefore), readValues[i] <= startedBefore);
+            final int earlierReads = lowerBound(readsByEnd, readStarts[i] << 32);
+            if (earlierReads > 0) {
+                assertTrue(String.format("[%s] read [%d, %d] returned %d after an earlier read returned %d",
+                        name, readStarts[i], readEnds[i], readValues[i], maxValueByEnd[earlierReads - 1]),
+                        readValues[i] >= maxValueByEnd[earlierReads - 1]);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Число элементов отсортированного массива, меньших {@code key}
+     */
+    private static int lowerBound(final long[] sorted, final long key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (sorted[middle] < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static void stress(final String name, final ExecutorService executor, final int tasks, final int operations)
+            throws Exception {
+        final EventCounter counter = implementation(name).apply(new Clock.CustomizableClock(NOON_MILLIS));
+        final AtomicLong ticks = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<History>> futures = new ArrayList<>(tasks);
+        for (int i = 0; i < tasks; i++) {
+            final long seed = i;
+            futures.add(executor.submit(() -> {
+                start.await();
+                return run(counter, ticks, operations, seed);
+            }));
+        }
+        start.countDown();
+        final List<History> histories = new ArrayList<>(tasks);
+        for (Future<History> future : futures) {
+            histories.add(future.get());
+        }
+        final long counted = checkLinearizable(name, histories);
+        assertEquals("[" + name + "] minute", counted, counter.eventsByLastMinute());
+        assertEquals("[" + name + "] hour", counted, counter.eventsByLastHour());
+        assertEquals("[" + name + "] day", counted, counter.eventsByLastDay());
+    }
+
+    /**
+     * История операций одного потока при движущихся часах: для каждой операции, кроме тиков, запоминаются секунды по часам до и после
+     * неё
+     */
+    private static final class TimedHistory {
+
+        private int size;
+
+        private long[] starts = new long[1024];
+
+        private long[] ends = new long[1024];
+
+        private long[] secondsBefore = new long[1024];
+
+        private long[] secondsAfter = new long[1024];
+
+        //0 - учёт события, иначе размер окна запроса в секундах
+        private int[] windows = new int[1024];
+
+        private long[] values = new long[1024];
+
+        void add(final long start, final long end, final long secondBefore, final long secondAfter, final int window,
+                final long value) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+                secondsBefore = Arrays.copyOf(secondsBefore, size * 2);
+                secondsAfter = Arrays.copyOf(secondsAfter, size * 2);
+                windows = Arrays.copyOf(windows, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            starts[size] = start;
+            ends[size] = end;
+            secondsBefore[size] = secondBefore;
+            secondsAfter[size] = secondAfter;
+            windows[size] = window;
+            values[size++] = value;
+        }
+    }
+
+    private static TimedHistory runTimed(final EventCounter counter, final Clock clock, final AtomicLong ticks,
+            final AtomicBoolean done, final long seed) {
+        final TimedHistory history = new TimedHistory();
+        final Random random = new Random(seed);
+        while (!done.get()) {
+            final int window = random.nextInt(10) != 0 ? 0 : WINDOWS[random.nextInt(WINDOWS.length)];
+            final long secondBefore = clock.getTime() / 1000L;
+            final long start = ticks.getAndIncrement();
+            final long value;
+            switch (window) {
+                case 0:
+                    counter.countEvent();
+                    value = 0L;
+                    break;
+                case 60:
+                    value = counter.eventsByLastMinute();
+                    break;
+                case 60 * 60:
+                    value = counter.eventsByLastHour();
+                    break;
+                default:
+                    value = counter.eventsByLastDay();
+            }
+            final long end = ticks.getAndIncrement();
+            history.add(start, end, secondBefore, clock.getTime() / 1000L, window, value);
+        }
+        return history;
+    }
+
+    /**
+     * Проверяет историю при движущихся часах на линеаризуемость относительно посекундной модели.
+     * <p>
+     * Событие, во время учёта которого часы не сменили секунду, относится к этой секунде; остальные могли попасть в любую секунду
+     * между отметками до и после. Чтение, во время которого часы не сменили секунду {@code q}, должно вернуть не меньше событий окна
+     * {@code [q - window + 1, q]}, завершившихся до его начала, и не больше событий, начавшихся до его конца и способных попасть в окно.
+     *
+     * @return число проверенных чтений
+     */
+    private static long checkLinearizableTimed(final String name, final EventCounter counter, final Clock clock,
+            final List<TimedHistory> histories) {
+        final long firstSecond = BEFORE_MIDNIGHT_MILLIS / 1000L;
+        final int seconds = (int) (clock.getTime() / 1000L - firstSecond + 1);
+        //отметки начала и конца событий с известной секундой, по секундам
+        final long[][] startsBySecond = new long[seconds][];
+        final long[][] endsBySecond = new long[seconds][];
+        final int[] sizes = new int[seconds];
+        final List<long[]> ambiguous = new ArrayList<>();
+        for (TimedHistory history : histories) {
+            for (int i = 0; i < history.size; i++) {
+                if (history.windows[i] == 0 && history.secondsBefore[i] == history.secondsAfter[i]) {
+                    sizes[(int) (history.secondsBefore[i] - firstSecond)]++;
+                }
+            }
+        }
+        for (int s = 0; s < seconds; s++) {
+            startsBySecond[s] = new long[sizes[s]];
+            endsBySecond[s] = new long[sizes[s]];
+            sizes[s] = 0;
+        }
+        for (TimedHistory history : histories) {
+            for (int i = 0; i < history.size; i++) {
+                if (history.windows[i] != 0) {
+                    continue;
+                }
+                if (history.secondsBefore[i] == history.secondsAfter[i]) {
+                    final int s = (int) (history.secondsBefore[i] - firstSecond);
+                    startsBySecond[s][sizes[s]] = history.starts[i];
+                    endsBySecond[s][sizes[s]++] = history.ends[i];
+                } else {
+                    ambiguous.add(new long[]{history.starts[i], history.ends[i], history.secondsBefore[i], history.secondsAfter[i]});
+                }
+            }
+        }
+        for (int s = 0; s < seconds; s++) {
+            Arrays.sort(startsBySecond[s]);
+            Arrays.sort(endsBySecond[s]);
+        }
+        long checked = 0L;
+        for (TimedHistory history : histories) {
+            for (int i = 0; i < history.size; i++) {
+                if (history.windows[i] == 0 || history.secondsBefore[i] != history.secondsAfter[i]) {
+                    continue;
+                }
+                checkRead(name, history.secondsBefore[i], history.windows[i], history.starts[i], history.ends[i], history.values[i],
+                        firstSecond, startsBySecond, endsBySecond, ambiguous);
+                checked++;
+            }
+        }
+        //после остановки все события завершены, чтение видит их все
+        final long now = clock.getTime() / 1000L;
+        checkRead(name, now, WINDOWS[0], Long.MAX_VALUE, Long.MAX_VALUE, counter.eventsByLastMinute(), firstSecond, startsBySecond,
+                endsBySecond, ambiguous);
+        checkRead(name, now, WINDOWS[1], Long.MAX_VALUE, Long.MAX_VALUE, counter.eventsByLastHour(), firstSecond, startsBySecond,
+                endsBySecond, ambiguous);
+        checkRead(name, now, WINDOWS[2], Long.MAX_VALUE, Long.MAX_VALUE, counter.eventsByLastDay(), firstSecond, startsBySecond,
+                endsBySecond, ambiguous);
+        return checked;
+    }
+
+    private static void checkRead(final String name, final long second, final int window, final long start, final long end,
+            final long value, final long firstSecond, final long[][] startsBySecond, final long[][] endsBySecond,
+            final List<long[]> ambiguous) {
+        final long from = second - window + 1;
+        long completedBefore = 0L;
+        long startedBefore = 0L;
+        for (long s = Math.max(from, firstSecond); s <= second && s - firstSecond < startsBySecond.length; s++) {
+            completedBefore += lowerBound(endsBySecond[(int) (s - firstSecond)], start);
+            startedBefore += lowerBound(startsBySecond[(int) (s - firstSecond)], end);
+        }
+        for (long[] event : ambiguous) {
+            //event: начало, конец, секунда до, секунда после
+            if (event[1] < start && event[2] >= from && event[3] <= second) {
+                completedBefore++;
+            }
+            if (event[0] < end && event[3] >= from && event[2] <= second) {
+                startedBefore++;
+            }
+        }
+        assertTrue(String.format("[%s] read of %d s at second %d [%d, %d] returned %d, but %d events of the window had already "
+                + "completed", name, window, second, start, end, value, completedBefore), value >= completedBefore);
+        assertTrue(String.format("[%s] read of %d s at second %d [%d, %d] returned %d, but only %d events of the window had started",
+                name, window, second, start, end, value, startedBefore), value <= startedBefore);
+    }
+
+    @Test
+    public void testLinearizablePlatformThreads() throws Exception {
+        final int threads = Math.max(64, Runtime.getRuntime().availableProcessors() * 4);
+        for (String name : IMPLEMENTATIONS) {
+            final ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                stress(name, executor, threads, 5_000);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    public void testLinearizableVirtualThreads() throws Exception {
+        Assume.assumeTrue("Virtual threads are enabled by the jdk21 profile", Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY));
+        for (String name : IMPLEMENTATIONS) {
+            //JDK 21 API через рефлексию: исходники собираются под 1.8
+            final ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            try {
+                stress(name, executor, 10_000, 100);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    public void testScaling() throws Exception {
+        final int maxThreads = Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
+        final int totalEvents = 1 << 20;
+        for (String name : IMPLEMENTATIONS) {
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                final EventCounter counter = implementation(name).apply(new Clock.CustomizableClock(NOON_MILLIS));
+                final int perThread = totalEvents / threads;
+                final ExecutorService executor = Executors.newFixedThreadPool(threads);
+                final CountDownLatch ready = new CountDownLatch(threads);
+                final CountDownLatch start = new CountDownLatch(1);
+                final List<Future<?>> futures = new ArrayList<>(threads);
+                for (int t = 0; t < threads; t++) {
+                    futures.add(executor.submit(() -> {
+                        ready.countDown();
+                        start.await();
+                        for (int i = 0; i < perThread; i++) {
+                            counter.countEvent();
+                        }
+                        return null;
+                    }));
+                }
+                ready.await();
+                final long begin = System.nanoTime();
+                start.countDown();
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+                final long elapsed = System.nanoTime() - begin;
+                executor.shutdown();
+                System.out.printf("[%s] threads=%-3d %,.0f events/s%n", name, threads, perThread * threads * 1e9D / elapsed);
+                assertEquals("[" + name + "] threads=" + threads, (long) perThread * threads, counter.eventsByLastDay());
+            }
+        }
+    }
+
+    @Test
+    public void testLinearizableAcrossRollover() throws Exception {
+        final int threads = Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
+        for (String name : IMPLEMENTATIONS) {
+            final Clock.CustomizableClock clock = new Clock.CustomizableClock(BEFORE_MIDNIGHT_MILLIS);
+            final EventCounter counter = implementation(name).apply(clock);
+            final AtomicLong ticks = new AtomicLong();
+            final AtomicBoolean done = new AtomicBoolean();
+            final ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                final List<Future<TimedHistory>> futures = new ArrayList<>(threads);
+                for (int i = 0; i < threads; i++) {
+                    final long seed = i;
+                    futures.add(executor.submit(() -> runTimed(counter, clock, ticks, done, seed)));
+                }
+                for (int step = 0; step < CLOCK_STEPS; step++) {
+                    LockSupport.parkNanos(20_000L);
+                    clock.incClock(CLOCK_STEP_MILLIS);
+                }
+                done.set(true);
+                final List<TimedHistory> histories = new ArrayList<>(threads);
+                long operations = 0L;
+                for (Future<TimedHistory> future : futures) {
+                    histories.add(future.get());
+                    operations += histories.get(histories.size() - 1).size;
+                }
+                final long checked = checkLinearizableTimed(name, counter, clock, histories);
+                System.out.printf("[%s] rollover: %d operations, %d reads checked%n", name, operations, checked);
+                assertTrue("[" + name + "] no reads were checked", checked > 0L);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package im.tretyakov.test.eventcounter;
+
+import com.kuldikin.test.eventcounter.Clock;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * Тесты для выгрузки поминутной истории событий
+ *
+ * @author Kuldikin
+ */
+public class MinuteHistoryTest extends TestCase {
+
+    private static final long MINUTE_MILLIS = 60_000L;
+
+    private static final long START_MINUTE = 17_000L * 24L * 60L + 23L * 60L;
+
+    private Path directory;
+
+    private Path file;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("minute-history");
+        file = directory.resolve("history.bin");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(MinuteHistoryWriter.indexPath(file));
+        Files.deleteIfExists(directory);
+    }
+
+    public void testWriteAndScan() throws Exception {
+        try (MinuteHistoryWriter writer = new MinuteHistoryWriter(file, 7)) {
+            for (long minute = START_MINUTE; minute < START_MINUTE + 100; minute++) {
+                writer.append(minute, minute % 5);
+            }
+        }
+        try (MinuteHistoryWriter writer = new MinuteHistoryWriter(file, 7)) {
+            assertEquals("Продолжаем за последней минутой с событиями", lastNonZero(START_MINUTE, START_MINUTE + 100),
+                    writer.getLastMinute());
+            writer.append(START_MINUTE + 1000, 1_000_000L);
+        }
+        try (MinuteHistoryReader reader = MinuteHistoryReader.open(file)) {
+            assertTrue("Несколько блоков", reader.getBlocks() > 10);
+            assertEquals(START_MINUTE + 1000, reader.getLastMinute());
+            assertEquals(expectedSum(START_MINUTE, START_MINUTE + 100), reader.sum(Long.MIN_VALUE, Long.MAX_VALUE) - 1_000_000L);
+            assertEquals(expectedSum(START_MINUTE + 13, START_MINUTE + 57), reader.sum(START_MINUTE + 13, START_MINUTE + 57));
+            assertEquals(1_000_000L, reader.sum(START_MINUTE + 100, START_MINUTE + 1001));
+            assertEquals(0L, reader.sum(START_MINUTE + 100, START_MINUTE + 1000));
+
+            final List<Long> minutes = new ArrayList<>();
+            reader.scan(START_MINUTE + 10, START_MINUTE + 20, (minute, count) -> {
+                assertEquals(minute % 5, count);
+                minutes.add(minute);
+            });
+            assertEquals("Минуты без событий не хранятся", 8, minutes.size());
+        }
+    }
+
+    public void testTruncatedTailIsDropped() throws Exception {
+        try (MinuteHistoryWriter writer = new MinuteHistoryWriter(file, 4)) {
+            for (long minute = START_MINUTE; minute < START_MINUTE + 10; minute++) {
+                writer.append(minute, 1L);
+            }
+        }
+        //блок данных записан, а запись индекса - только наполовину
+        try (FileChannel index = FileChannel.open(MinuteHistoryWriter.indexPath(file), StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            index.write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        }
+        //запись индекса ссылается на недописанный блок
+        try (FileChannel index = FileChannel.open(MinuteHistoryWriter.indexPath(file), StandardOpenOption.WRITE)) {
+            final ByteBuffer entry = ByteBuffer.allocate(MinuteHistoryFormat.INDEX_ENTRY_SIZE);
+            entry.putLong(START_MINUTE + 20).putLong(START_MINUTE + 30).putLong(Files.size(file)).putInt(100);
+            ((Buffer) entry).flip();
+            index.write(entry, 3L * MinuteHistoryFormat.INDEX_ENTRY_SIZE);
+        }
+        try (MinuteHistoryWriter writer = new MinuteHistoryWriter(file, 4)) {
+            assertEquals(START_MINUTE + 9, writer.getLastMinute());
+            writer.append(START_MINUTE + 10, 5L);
+        }
+        try (MinuteHistoryReader reader = MinuteHistoryReader.open(file)) {
+            assertEquals(4, reader.getBlocks());
+            assertEquals(15L, reader.sum(Long.MIN_VALUE, Long.MAX_VALUE));
+        }
+    }
+
+    public void testMissingIndexKeepsData() throws Exception {
+        try (MinuteHistoryWriter writer = new MinuteHistoryWriter(file)) {
+            for (long minute = START_MINUTE; minute < START_MINUTE + 4000; minute++) {
+                writer.append(minute, 1L);
+            }
+        }
+        final long size = Files.size(file);
+        Files.delete(MinuteHistoryWriter.indexPath(file));
+        try {
+            new MinuteHistoryWriter(file).close();
+            fail("Файл без индекса открылся");
+        } catch (IOException expected) {
+            //ожидаемо
+        }
+        assertEquals("Данные не тронуты", size, Files.size(file));
+        assertFalse(Files.exists(MinuteHistoryWriter.indexPath(file)));
+    }
+
+    public void testLongTailKeepsData() throws Exception {
+        //около 1,2 МБ: по байту на разность и на счётчик
+        try (MinuteHistoryWriter writer = new MinuteHistoryWriter(file)) {
+            for (long minute = START_MINUTE; minute < START_MINUTE + 600_000; minute++) {
+                writer.append(minute, 1L);
+            }
+        }
+        final long size = Files.size(file);
+        try (FileChannel index = FileChannel.open(MinuteHistoryWriter.indexPath(file), StandardOpenOption.WRITE)) {
+            index.truncate(0L);
+        }
+        try {
+            new MinuteHistoryWriter(file).close();
+            fail("Хвост длиннее буфера отрезан");
+        } catch (IOException expected) {
+            //ожидаемо
+        }
+        assertEquals("Данные не тронуты", size, Files.size(file));
+    }
+
+    public void testExportTwoDays() throws Exception {
+        final Clock.CustomizableClock clock = new Clock.CustomizableClock(START_MINUTE * MINUTE_MILLIS + 30_000L);
+        final EventCounterCyclicBufferImpl counter = new EventCounterCyclicBufferImpl(clock);
+        final long[] expected = new long[2 * 24 * 60];
+        try (MinuteHistoryExporter exporter = new MinuteHistoryExporter(counter, file, 60L * 60L * 1000L)) {
+            for (int i = 0; i < expected.length; i++) {
+                //паузы по нескольку часов, чтобы выгрузка шла и по пустым минутам
+                expected[i] = (i / 60) % 5 == 0 ? 0L : i % 7;
+                for (int e = 0; e < expected[i]; e++) {
+                    counter.countEvent();
+                }
+                clock.incClock(MINUTE_MILLIS);
+                if (i % 30 == 0) {
+                    exporter.export();
+                }
+            }
+            assertEquals(0L, exporter.getLostMinutes());
+        }
+        try (MinuteHistoryReader reader = MinuteHistoryReader.open(file)) {
+            //выгрузка раз в полчаса не должна давать по блоку на каждый запуск
+            assertTrue("Блоков " + reader.getBlocks(), reader.getBlocks() <= 2 * 24);
+            final long[] actual = new long[expected.length];
+            reader.scan(START_MINUTE, START_MINUTE + expected.length,
+                    (minute, count) -> actual[(int) (minute - START_MINUTE)] = count);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals("Минута " + i, expected[i], actual[i]);
+            }
+        }
+    }
+
+    public void testExportLagLosesMinutes() throws Exception {
+        final Clock.CustomizableClock clock = new Clock.CustomizableClock(START_MINUTE * MINUTE_MILLIS);
+        final EventCounterCyclicBufferImpl counter = new EventCounterCyclicBufferImpl(clock);
+        try (MinuteHistoryExporter exporter = new MinuteHistoryExporter(counter, file, 60L * 60L * 1000L)) {
+            for (int i = 0; i < 3 * 24 * 60; i++) {
+                counter.countEvent();
+                clock.incClock(MINUTE_MILLIS);
+            }
+            exporter.export();
+            //минуты до создания счётчика потерянными не считаются
+            assertEquals("Выгрузка опоздала на двое суток", 2L * 24L * 60L, exporter.getLostMinutes());
+        }
+        try (MinuteHistoryReader reader = MinuteHistoryReader.open(file)) {
+            assertEquals(24L * 60L, reader.sum(Long.MIN_VALUE, Long.MAX_VALUE));
+        }
+    }
+
+    public void testBackgroundFailureIsReported() throws Exception {
+        final AtomicBoolean broken = new AtomicBoolean();
+        final AtomicInteger brokenCalls = new AtomicInteger();
+        final Clock clock = new Clock() {
+            @Override
+            public long getTime() {
+                if (broken.get()) {
+                    brokenCalls.incrementAndGet();
+                    throw new IllegalStateException("Clock is broken");
+                }
+                return START_MINUTE * MINUTE_MILLIS;
+            }
+        };
+        final MinuteHistoryExporter exporter = new MinuteHistoryExporter(new EventCounterCyclicBufferImpl(clock), file, 1L);
+        broken.set(true);
+        while (brokenCalls.get() == 0) {
+            Thread.sleep(1L);
+        }
+        try {
+            exporter.close();
+            fail("Ошибка фоновой выгрузки потеряна");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    private static long expectedSum(final long from, final long to) {
+        long sum = 0L;
+        for (long minute = from; minute < to; minute++) {
+            sum += minute % 5;
+        }
+        return sum;
+    }
+
+    private static long lastNonZero(final long from, final long to) {
+        long last = Long.MIN_VALUE;
+        for (long minute = from; minute < to; minute++) {
+            if (minute % 5 != 0) {
+                last = minute;
+            }
+        }
+        return last;
+    }
+}
@@ -0,0 +1,167 @@
+package im.tretyakov.test.eventcounter.replay;
+
+import com.kuldikin.test.eventcounter.Clock;
+import im.tretyakov.test.eventcounter.EventCounterCyclicBufferImpl;
+import im.tretyakov.test.eventcounter.EventCounterStreamImpl;
+import im.tretyakov.test.eventcounter.MinuteHistoryReader;
+import im.tretyakov.test.eventcounter.MinuteHistoryWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import junit.framework.TestCase;
+
+/**
+ * Тесты для генератора и прогона трасс событий
+ *
+ * @author Kuldikin
+ */
+public class TraceReplayTest extends TestCase {
+
+    private static final long DAY_SECONDS = 24L * 60L * 60L;
+
+    private Path file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = Files.createTempFile("event-trace", ".bin");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Files.deleteIfExists(file);
+    }
+
+    public void testGeneratedTraceIsReadBack() throws Exception {
+        final long count = new TraceGenerator(TraceGenerator.Profile.BURSTY, 5D, 1L)
+                .generate(file, TraceGenerator.DEFAULT_START_MILLIS, 2L * 60L * 60L);
+        try (TraceReader trace = TraceReader.open(file)) {
+            assertEquals(count, trace.size());
+            long previous = TraceGenerator.DEFAULT_START_MILLIS;
+            long read = 0L;
+            while (trace.hasNext()) {
+                final long millis = trace.next();
+                assertTrue("Отметки времени не убывают", millis >= previous);
+                previous = millis;
+                read++;
+            }
+            assertEquals(count, read);
+            trace.rewind();
+            assertTrue(trace.next() >= TraceGenerator.DEFAULT_START_MILLIS);
+        }
+    }
+
+    public void testReferenceCountsByHand() throws Exception {
+        //18.07.2016 23:59:00 UTC
+        final long t0 = (17_001L * DAY_SECONDS - 60L) * 1000L;
+        final Clock.CustomizableClock clock = new Clock.CustomizableClock(t0);
+        final ReferenceEventCounter counter = new ReferenceEventCounter(clock);
+        count(clock, counter, t0 + 500L, 3);
+        count(clock, counter, t0 + 59_900L, 2);
+        //после полуночи
+        count(clock, counter, t0 + 60_100L, 4);
+        count(clock, counter, t0 + 90_000L, 1);
+        //00:00:30 - минута с 23:59:31
+        assertCounts(counter, 2L + 4L + 1L, 10L, 10L);
+        setTime(clock, t0 + 119_999L);
+        //00:00:59.999 - минута с 00:00:00
+        assertCounts(counter, 4L + 1L, 10L, 10L);
+        setTime(clock, t0 + 60_000L + 59L * 60_000L + 500L);
+        //00:59:00.500 - час с 23:59:01
+        assertCounts(counter, 0L, 2L + 4L + 1L, 10L);
+        setTime(clock, t0 + DAY_SECONDS * 1000L);
+        //19.07 23:59:00 - сутки с 23:59:01 18.07
+        assertCounts(counter, 0L, 0L, 2L + 4L + 1L);
+        setTime(clock, t0 + DAY_SECONDS * 1000L + 60_000L);
+        //20.07 00:00:00 - сутки с 00:00:01 19.07, события 00:00:00 уже вне окна
+        assertCounts(counter, 0L, 0L, 1L);
+
+        //пауза больше суток: в ту же секунду суток, что и первые три события, старые значения не учитываются
+        count(clock, counter, t0 + 3L * DAY_SECONDS * 1000L + 500L, 1);
+        assertCounts(counter, 1L, 1L, 1L);
+        setTime(clock, t0 + 5L * DAY_SECONDS * 1000L);
+        assertCounts(counter, 0L, 0L, 0L);
+    }
+
+    private static void setTime(final Clock.CustomizableClock clock, final long millis) {
+        clock.incClock(millis - clock.getTime());
+    }
+
+    private static void count(final Clock.CustomizableClock clock, final ReferenceEventCounter counter, final long millis,
+            final int events) {
+        setTime(clock, millis);
+        for (int i = 0; i < events; i++) {
+            counter.countEvent();
+        }
+    }
+
+    private static void assertCounts(final ReferenceEventCounter counter, final long minute, final long hour, final long day) {
+        assertEquals("minute", minute, counter.eventsByLastMinute());
+        assertEquals("hour", hour, counter.eventsByLastHour());
+        assertEquals("day", day, counter.eventsByLastDay());
+    }
+
+    public void testStreamImplOverMidnight() throws Exception {
+        new TraceGenerator(TraceGenerator.Profile.DIURNAL, 0.2D, 3L).generate(file, TraceGenerator.DEFAULT_START_MILLIS, DAY_SECONDS / 4L);
+        try (TraceReader trace = TraceReader.open(file)) {
+            final TraceReplay.Report report = TraceReplay.replay(trace, "stream", EventCounterStreamImpl::new, 60_000L);
+            report.print(System.out);
+            assertEquals(0L, report.getMismatches());
+        }
+    }
+
+    public void testCyclicImplOverIdleGaps() throws Exception {
+        new TraceGenerator(TraceGenerator.Profile.SPARSE, 50D, 4L).generate(file, TraceGenerator.DEFAULT_START_MILLIS, 5L * DAY_SECONDS);
+        try (TraceReader trace = TraceReader.open(file)) {
+            final TraceReplay.Report report = TraceReplay.replay(trace, "cyclic", EventCounterCyclicBufferImpl::new, 60_000L);
+            report.print(System.out);
+            assertEquals(0L, report.getMismatches());
+        }
+    }
+
+    public void testCyclicImplOverMidnight() throws Exception {
+        new TraceGenerator(TraceGenerator.Profile.BURSTY, 2D, 5L).generate(file, TraceGenerator.DEFAULT_START_MILLIS, DAY_SECONDS / 4L);
+        try (TraceReader trace = TraceReader.open(file)) {
+            final TraceReplay.Report report = TraceReplay.replay(trace, "cyclic", EventCounterCyclicBufferImpl::new, 60_000L);
+            report.print(System.out);
+            assertEquals(0L, report.getMismatches());
+        }
+    }
+
+    public void testCyclicImplWithExport() throws Exception {
+        new TraceGenerator(TraceGenerator.Profile.DIURNAL, 20D, 6L).generate(file, TraceGenerator.DEFAULT_START_MILLIS, DAY_SECONDS);
+        final Path directory = Files.createTempDirectory("minute-history");
+        final ExportingCounterFactory factory = new ExportingCounterFactory(directory, TraceReplay.EXPORT_PERIOD_MILLIS);
+        try (TraceReader trace = TraceReader.open(file)) {
+            final TraceReplay.Report plain = TraceReplay.replay(trace, "cyclic", EventCounterCyclicBufferImpl::new, 60_000L);
+            final TraceReplay.Report exported;
+            try {
+                exported = TraceReplay.replay(trace, "cyclic-export", factory, 60_000L);
+            } finally {
+                factory.close();
+            }
+            plain.print(System.out);
+            exported.print(System.out);
+            assertEquals(0L, plain.getMismatches());
+            assertEquals(0L, exported.getMismatches());
+
+            //выгружены все события, кроме событий последней, ещё не завершившейся минуты
+            trace.rewind();
+            long lastMinute = Long.MIN_VALUE;
+            long lastMinuteEvents = 0L;
+            while (trace.hasNext()) {
+                final long minute = trace.next() / 60_000L;
+                lastMinuteEvents = minute == lastMinute ? lastMinuteEvents + 1L : 1L;
+                lastMinute = minute;
+            }
+            assertEquals("Оба прохода с выгрузкой", 2, factory.getFiles().size());
+            try (MinuteHistoryReader reader = MinuteHistoryReader.open(factory.getFiles().get(1))) {
+                assertEquals(trace.size() - lastMinuteEvents, reader.sum(Long.MIN_VALUE, Long.MAX_VALUE));
+            }
+        } finally {
+            for (Path history : factory.getFiles()) {
+                Files.deleteIfExists(history);
+                Files.deleteIfExists(MinuteHistoryWriter.indexPath(history));
+            }
+            Files.delete(directory);
+        }
+    }
+}